@@ -0,0 +1,166 @@
+package fauxSolution.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.json.JSONObject;
+
+/**
+ * Sends requests without waiting for the answers. Every request gets an
+ * "id", the server answers as soon as it can, maybe out of order, and the
+ * response with the same id completes the future of the request. Up to
+ * window requests are on their way at the same time, send waits for a free
+ * slot. On a link with a long round trip this keeps the connection busy
+ * instead of sending one request per round trip.
+ *
+ * A server that does not know ids answers in order and without them, those
+ * responses complete the oldest request.
+ *
+ * Arguments of main: [requests, default 100000] [window, default 32]
+ * [port, default 9000]
+ */
+public class AsyncClient implements Closeable {
+  private final SocketChannel sock;
+  private final BufferPool pool = new BufferPool(LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE, 4);
+  // a codec per direction, requests are sent while the reader thread reads
+  private final FrameCodec in = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+  private final FrameCodec out = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+  private final Semaphore window;
+  // in the order they were sent
+  private final Map<Long, CompletableFuture<JSONObject>> pending = new LinkedHashMap<>();
+  private long nextId = 0;
+  // set once the connection is gone, guarded by pending
+  private IOException closed;
+
+  public AsyncClient(String host, int port, int window) throws IOException {
+    this.sock = SocketChannel.open(new InetSocketAddress(host, port));
+    this.window = new Semaphore(window);
+    Thread reader = new Thread(this::readResponses, "responses");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Sends a request, waits only if window requests are already waiting for
+   * their response
+   * @param request gets an "id" added
+   * @return completes with the response, images read with BinaryMessage.decode
+   */
+  public CompletableFuture<JSONObject> send(JSONObject request) throws IOException, InterruptedException {
+    window.acquire();
+    CompletableFuture<JSONObject> response = new CompletableFuture<>();
+    synchronized (out) {
+      long id = nextId++;
+      request.put("id", id);
+      synchronized (pending) {
+        if (closed != null) {
+          window.release();
+          throw closed;
+        }
+        pending.put(id, response);
+      }
+      try {
+        out.write(sock, ByteBuffer.wrap(JsonUtils.toByteArray(request)));
+      } catch (IOException e) {
+        synchronized (pending) {
+          pending.remove(id);
+        }
+        window.release();
+        throw e;
+      }
+    }
+    return response;
+  }
+
+  private void readResponses() {
+    Exception failure = null;
+    try {
+      while (true) {
+        ByteBuffer frame = in.read(sock);
+        if (frame == null) {
+          break;
+        }
+        JSONObject response;
+        try {
+          response = BinaryMessage.decode(frame);
+        } finally {
+          in.release(frame);
+        }
+        CompletableFuture<JSONObject> request;
+        synchronized (pending) {
+          if (response.has("id")) {
+            request = pending.remove(response.getLong("id"));
+          } else {
+            Iterator<CompletableFuture<JSONObject>> oldest = pending.values().iterator();
+            request = oldest.hasNext() ? oldest.next() : null;
+            if (request != null) {
+              oldest.remove();
+            }
+          }
+        }
+        if (request != null) {
+          request.complete(response);
+          window.release();
+        }
+      }
+    } catch (Exception e) {
+      failure = e;
+    }
+    // the connection is gone, nothing will answer the rest
+    synchronized (pending) {
+      closed = new IOException("Connection closed", failure);
+      for (CompletableFuture<JSONObject> request : pending.values()) {
+        request.completeExceptionally(closed);
+      }
+      window.release(pending.size());
+      pending.clear();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    sock.close();
+  }
+
+  /**
+   * Sends random joke/quote/image requests as fast as the window allows and
+   * prints how many were answered per second
+   */
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int window = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : 9000;
+    try (AsyncClient client = new AsyncClient("localhost", port, window)) {
+      int[] answers = new int[2]; // responses, errors
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        JSONObject request = new JSONObject();
+        request.put("selected", 1 + i % 3);
+        request.put("binary", true);
+        client.send(request).whenComplete((response, e) -> {
+          synchronized (answers) {
+            answers[0]++;
+            if (e != null || response.has("error")) {
+              answers[1]++;
+            }
+          }
+        });
+      }
+      // the window is free again once every response arrived
+      client.window.acquire(window);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      synchronized (answers) {
+        System.out.printf("%d requests, window %d: %.0f requests/s, %d errors%n", answers[0], window,
+            answers[0] / seconds, answers[1]);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package fauxSolution.tcp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Messages that carry raw bytes next to a small JSON header, instead of
+ * Base64 in a JSON string which is a third larger and has to be parsed as
+ * text. A binary message is
+ *   0 (1 byte), headerLength(4-byte int), header(JSON), data(the rest)
+ * JSON text always starts with '{', so the first byte tells both kinds
+ * apart.
+ *
+ * A client asks for binary data with "binary": true in its request. Servers
+ * that do not know binary messages ignore that and send Base64 as before,
+ * decode and data handle both.
+ */
+public class BinaryMessage {
+  public static final byte MARKER = 0;
+  public static final int HEADER_SIZE = 5;
+
+  /**
+   * @param header the response without "data"
+   * @param data sent as it is after the header
+   */
+  public static byte[] encode(JSONObject header, byte[] data) {
+    byte[] headerBytes = JsonUtils.toByteArray(header);
+    return ByteBuffer.allocate(HEADER_SIZE + headerBytes.length + data.length)
+        .put(MARKER)
+        .putInt(headerBytes.length)
+        .put(headerBytes)
+        .put(data)
+        .array();
+  }
+
+  /**
+   * @param request the request that is answered
+   * @return true if the client can read binary messages
+   */
+  public static boolean accepted(JSONObject request) {
+    return request.optBoolean("binary", false);
+  }
+
+  /**
+   * Reads a JSON or a binary message, the message from position to limit.
+   * The data of a binary message is copied into "data" as a byte[], the
+   * buffer can be reused afterwards.
+   */
+  public static JSONObject decode(ByteBuffer message) {
+    ByteBuffer in = message.duplicate();
+    if (!in.hasRemaining() || in.get(in.position()) != MARKER) {
+      return new JSONObject(text(in, in.remaining()));
+    }
+    in.get(); // marker
+    int headerLength = in.remaining() >= 4 ? in.getInt() : -1;
+    if (headerLength < 0 || headerLength > in.remaining()) {
+      throw new JSONException("Binary message with a broken header length");
+    }
+    JSONObject header = new JSONObject(text(in, headerLength));
+    in.position(in.position() + headerLength);
+    byte[] data = new byte[in.remaining()];
+    in.get(data);
+    header.put("data", data);
+    return header;
+  }
+
+  private static String text(ByteBuffer in, int length) {
+    return new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param response a response returned by decode
+   * @return its data, decoded from Base64 if the server sent it as text
+   */
+  public static byte[] data(JSONObject response) {
+    Object data = response.get("data");
+    if (data instanceof byte[]) {
+      return (byte[]) data;
+    }
+    return Base64.getDecoder().decode(response.getString("data"));
+  }
+}
@@ -0,0 +1,71 @@
+package fauxSolution.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Reuses the buffers frames are read into, so reading a message does not
+ * allocate a new byte[] every time. Buffers come in power of two sizes
+ * (4 KB, 8 KB, ...), a frame gets the smallest one it fits in. Every size
+ * keeps at most a few free buffers, anything beyond that is left to the GC.
+ * Safe to use from many threads.
+ */
+public class BufferPool {
+  private static final int MIN_SHIFT = 12; // 4 KB
+
+  private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+  private final AtomicIntegerArray freeCount;
+  private final int maxFreePerSize;
+
+  /**
+   * @param maxBufferSize largest buffer handed out, e.g. the max frame size
+   * @param maxFreePerSize free buffers kept per size
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public BufferPool(int maxBufferSize, int maxFreePerSize) {
+    int sizes = sizeClass(maxBufferSize) + 1;
+    free = new ConcurrentLinkedQueue[sizes];
+    for (int i = 0; i < sizes; i++) {
+      free[i] = new ConcurrentLinkedQueue<>();
+    }
+    freeCount = new AtomicIntegerArray(sizes);
+    this.maxFreePerSize = maxFreePerSize;
+  }
+
+  /**
+   * @param size bytes needed, at most maxBufferSize
+   * @return a cleared buffer with its limit set to size
+   */
+  public ByteBuffer acquire(int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer buffer = free[sizeClass].poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+    } else {
+      freeCount.decrementAndGet(sizeClass);
+    }
+    buffer.clear().limit(size);
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back, it must not be used afterwards
+   */
+  public void release(ByteBuffer buffer) {
+    int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+    if (sizeClass < 0 || sizeClass >= free.length || Integer.bitCount(buffer.capacity()) != 1) {
+      return; // not one of ours
+    }
+    if (freeCount.incrementAndGet(sizeClass) > maxFreePerSize) {
+      freeCount.decrementAndGet(sizeClass);
+      return;
+    }
+    free[sizeClass].add(buffer);
+  }
+
+  private static int sizeClass(int size) {
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    return Math.max(0, shift - MIN_SHIFT);
+  }
+}
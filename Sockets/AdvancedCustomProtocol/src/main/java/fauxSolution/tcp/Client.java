@@ -3,10 +3,9 @@ package fauxSolution.tcp;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Base64;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
 
 import javax.imageio.ImageIO;
@@ -42,21 +41,23 @@ public class Client {
   public static JSONObject image() {
     JSONObject request = new JSONObject();
     request.put("selected", 3);
+    request.put("binary", true); // raw bytes instead of Base64 if the server can
     return request;
   }
 
   public static JSONObject random() {
     JSONObject request = new JSONObject();
     request.put("selected", 4);
+    request.put("binary", true);
     return request;
   }
 
   public static void main(String[] args) throws IOException {
-    Socket sock;
+    SocketChannel sock;
     try {
-      sock = new Socket("localhost", 9000);
-      OutputStream out = sock.getOutputStream();
-      InputStream in = sock.getInputStream();
+      sock = SocketChannel.open(new InetSocketAddress("localhost", 9000));
+      FrameCodec codec = new LengthPrefixedCodec(new BufferPool(LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE, 2),
+          LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -82,8 +83,6 @@ public class Client {
           break;
         case (0):
           sock.close();
-          out.close();
-          in.close();
           System.exit(0);
           break;
         default:
@@ -92,9 +91,14 @@ public class Client {
         }
 
         if (request != null) {
-          NetworkUtils.Send(out, JsonUtils.toByteArray(request));
-          byte[] responseBytes = NetworkUtils.Receive(in);
-          JSONObject response = JsonUtils.fromByteArray(responseBytes);
+          codec.write(sock, ByteBuffer.wrap(JsonUtils.toByteArray(request)));
+          ByteBuffer responseFrame = codec.read(sock);
+          if (responseFrame == null) {
+            System.out.println("Server closed the connection");
+            System.exit(1);
+          }
+          JSONObject response = BinaryMessage.decode(responseFrame);
+          codec.release(responseFrame);
           if (response.has("error")) {
             System.out.println(response.getString("error"));
           } else {
@@ -105,8 +109,7 @@ public class Client {
               break;
             case (2): {
               System.out.println("Your image");
-              Base64.Decoder decoder = Base64.getDecoder();
-              byte[] bytes = decoder.decode(response.getString("data"));
+              byte[] bytes = BinaryMessage.data(response);
               ImageIcon icon = null;
               try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                 BufferedImage image = ImageIO.read(bais);
@@ -0,0 +1,203 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.json.JSONObject;
+
+/**
+ * One client connection: reads requests, answers them with Server.handle
+ * until the client disconnects. Server runs it on its only thread,
+ * ThreadedServer gives every connection a thread of its own.
+ *
+ * Counts the requests of this connection by selection, printed when the
+ * client disconnects.
+ *
+ * Connections can share a Semaphore that limits how many requests are
+ * answered at the same time. Waiting for a request costs nothing, but
+ * answering one costs CPU, more threads doing that than there are
+ * processors only makes each of them slower.
+ *
+ * Requests with an "id" are answered by Server.WORKERS while the next
+ * request is read, several at the same time. A writer thread of this
+ * connection sends each response as soon as it is ready, with the id of
+ * its request, so the client can send many requests without waiting for
+ * each answer. At most MAX_IN_FLIGHT of them per connection, after that
+ * reading waits and TCP slows the client down.
+ * Requests without an id are answered in order, one after another.
+ */
+public class Connection implements Runnable {
+  private final SocketChannel sock;
+  private final int id;
+  // a codec per direction, responses are written while the next request is read
+  private final FrameCodec in;
+  private final FrameCodec out;
+  private final Semaphore working;
+  // index 1-4 the selections, 0 everything that got an error
+  private final int[] requests = new int[5];
+
+  public static final int MAX_IN_FLIGHT = 64;
+  private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+  // writes the responses to requests with an id, started with the first one
+  private ExecutorService writer;
+
+  public Connection(SocketChannel sock, int id, BufferPool pool) {
+    this(sock, id, pool, null);
+  }
+
+  /**
+   * @param working permits to answer a request, null for no limit
+   */
+  public Connection(SocketChannel sock, int id, BufferPool pool, Semaphore working) {
+    this.sock = sock;
+    this.id = id;
+    this.working = working;
+    this.in = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+    this.out = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  @Override
+  public void run() {
+    String reason = "";
+    try {
+      while (true) {
+        ByteBuffer frame = in.read(sock);
+        if (frame == null) {
+          break; // client closed the connection
+        }
+        JSONObject message;
+        try {
+          message = JsonUtils.fromByteBuffer(frame);
+        } finally {
+          in.release(frame);
+        }
+        count(message);
+        Object requestId = message.opt("id");
+        if (requestId == null) {
+          send(answer(message), null);
+          continue;
+        }
+        if (writer == null) {
+          writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(null, task, "client-" + id + "-writer", 256 * 1024);
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
+        ExecutorService responses = writer;
+        inFlight.acquire();
+        Server.WORKERS.execute(() -> {
+          byte[] answered;
+          try {
+            answered = answer(message);
+          } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+              Thread.currentThread().interrupt();
+            }
+            // the client waits for an answer with this id, it gets an error
+            answered = JsonUtils.toByteArray(Server.error("Could not answer the request: " + e));
+          }
+          byte[] response = answered;
+          // a client that does not read must not block the workers
+          try {
+            responses.execute(() -> {
+              try {
+                send(response, requestId);
+              } catch (IOException e) {
+                close(); // the reading thread notices and ends the connection
+              } finally {
+                inFlight.release();
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            inFlight.release(); // the connection has ended, nobody to answer
+          }
+        });
+      }
+      // the client may still read the answers to its last requests
+      inFlight.acquire(MAX_IN_FLIGHT);
+    } catch (Exception e) {
+      reason = ": " + e;
+    } finally {
+      if (writer != null) {
+        writer.shutdown();
+      }
+      close();
+    }
+    System.out.println("Client " + id + " disconnect after " + total() + " requests (jokes " + requests[1]
+        + ", quotes " + requests[2] + ", images " + requests[3] + ", random " + requests[4] + ", errors "
+        + requests[0] + ")" + reason);
+  }
+
+  private byte[] answer(JSONObject message) throws InterruptedException {
+    if (working != null) {
+      working.acquire();
+    }
+    try {
+      return Server.handle(message);
+    } finally {
+      if (working != null) {
+        working.release();
+      }
+    }
+  }
+
+  /**
+   * @param requestId put into the response, null for none
+   */
+  private void send(byte[] response, Object requestId) throws IOException {
+    if (requestId == null) {
+      synchronized (out) {
+        out.write(sock, ByteBuffer.wrap(response));
+      }
+      return;
+    }
+    // the responses are shared, the id goes in front of their first field
+    // instead of into a copy: {"id":7,"datatype":1,...
+    byte[] idField = ("{\"id\":" + JSONObject.valueToString(requestId) + ",").getBytes(StandardCharsets.UTF_8);
+    if (response[0] == BinaryMessage.MARKER) {
+      int headerLength = ByteBuffer.wrap(response, 1, 4).getInt();
+      ByteBuffer start = ByteBuffer.allocate(BinaryMessage.HEADER_SIZE).put(BinaryMessage.MARKER)
+          .putInt(headerLength + idField.length - 1).flip();
+      int rest = BinaryMessage.HEADER_SIZE + 1;
+      synchronized (out) {
+        out.write(sock, start, ByteBuffer.wrap(idField), ByteBuffer.wrap(response, rest, response.length - rest));
+      }
+    } else {
+      synchronized (out) {
+        out.write(sock, ByteBuffer.wrap(idField), ByteBuffer.wrap(response, 1, response.length - 1));
+      }
+    }
+  }
+
+  private void close() {
+    try {
+      sock.close();
+    } catch (IOException e) {
+      // nothing left to do with it
+    }
+  }
+
+  private void count(JSONObject message) {
+    Object selected = message.opt("selected");
+    int choice = selected instanceof Integer || selected instanceof Long ? message.getInt("selected") : 0;
+    requests[choice >= 1 && choice <= 4 ? choice : 0]++;
+  }
+
+  /**
+   * @return requests answered so far on this connection
+   */
+  private int total() {
+    int total = 0;
+    for (int count : requests) {
+      total += count;
+    }
+    return total;
+  }
+}
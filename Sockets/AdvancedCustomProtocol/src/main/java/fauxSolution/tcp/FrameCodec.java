@@ -0,0 +1,39 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Cuts the byte stream of a TCP connection into messages (frames) and puts
+ * messages onto it. TCP only knows bytes, a read can return half a message
+ * or one and a half, so both sides need to agree where a message ends.
+ *
+ * A codec is not meant to be used by several threads at the same time. A
+ * connection that reads on one thread while another one writes uses a
+ * codec for each direction.
+ */
+public interface FrameCodec {
+
+  /**
+   * Reads the next frame, however many reads that takes
+   * @return the payload of the frame, from position to limit. Give it back
+   *         with release once it is not needed anymore. null if the peer
+   *         closed the connection between two frames.
+   * @throws java.io.EOFException if the peer closed the connection in the middle of a frame
+   * @throws java.net.ProtocolException if the frame is larger than allowed
+   */
+  ByteBuffer read(ReadableByteChannel in) throws IOException;
+
+  /**
+   * Writes one frame, its header and all payload parts in as few writes as possible
+   * @param payload the parts of the payload, sent one after another
+   */
+  void write(GatheringByteChannel out, ByteBuffer... payload) throws IOException;
+
+  /**
+   * Gives a frame returned by read back to the pool
+   */
+  void release(ByteBuffer frame);
+}
@@ -0,0 +1,112 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Messages per second over loopback, the old NetworkUtils.Send/Receive
+ * against LengthPrefixedCodec. A sender thread writes the messages as fast
+ * as it can, the main thread reads them, so this measures framing and not
+ * round trip latency. Two payloads: a request as the client sends it and a
+ * 16 KB one, about the size of a part of the image.
+ *
+ * Arguments: [messages per run, default 200000]
+ */
+public class FramingBenchmark {
+  private static final int RUNS = 5;
+
+  interface Run {
+    void run(int messages, byte[] payload) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    byte[] small = JsonUtils.toByteArray(new JSONObject().put("selected", 3));
+    byte[] large = new byte[16 * 1024];
+    Arrays.fill(large, (byte) 'x');
+
+    for (byte[] payload : new byte[][] { small, large }) {
+      System.out.println(payload.length + " byte messages, " + messages + " per run");
+      measure("NetworkUtils", FramingBenchmark::legacy, messages, payload);
+      measure("LengthPrefixedCodec", FramingBenchmark::codec, messages, payload);
+    }
+  }
+
+  private static void measure(String name, Run run, int messages, byte[] payload) throws Exception {
+    run.run(messages / 10, payload); // warm up
+    double best = 0;
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      run.run(messages, payload);
+      double perSecond = messages * 1e9 / (System.nanoTime() - start);
+      best = Math.max(best, perSecond);
+    }
+    System.out.printf("  %-20s %,12.0f messages/s%n", name, best);
+  }
+
+  private static void legacy(int messages, byte[] payload) throws Exception {
+    PrintStream stdout = System.out;
+    // NetworkUtils.Read prints every read, that would be all we measure
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try (ServerSocket serv = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Thread sender = new Thread(() -> {
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), serv.getLocalPort())) {
+          OutputStream out = sock.getOutputStream();
+          for (int i = 0; i < messages; i++) {
+            NetworkUtils.Send(out, payload);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+      sender.start();
+      try (Socket sock = serv.accept()) {
+        InputStream in = sock.getInputStream();
+        for (int i = 0; i < messages; i++) {
+          NetworkUtils.Receive(in);
+        }
+      }
+      sender.join();
+    } finally {
+      System.setOut(stdout);
+    }
+  }
+
+  private static void codec(int messages, byte[] payload) throws Exception {
+    BufferPool pool = new BufferPool(LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE, 4);
+    try (ServerSocketChannel serv = ServerSocketChannel.open()) {
+      serv.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      Thread sender = new Thread(() -> {
+        try (SocketChannel sock = SocketChannel.open(serv.getLocalAddress())) {
+          FrameCodec codec = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+          ByteBuffer message = ByteBuffer.wrap(payload);
+          for (int i = 0; i < messages; i++) {
+            codec.write(sock, message.rewind());
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+      sender.start();
+      try (SocketChannel sock = serv.accept()) {
+        FrameCodec codec = new LengthPrefixedCodec(pool, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+        for (int i = 0; i < messages; i++) {
+          codec.release(codec.read(sock));
+        }
+      }
+      sender.join();
+    }
+  }
+}
@@ -1,14 +1,24 @@
 package fauxSolution.tcp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import org.json.JSONObject;
 
 public class JsonUtils {
   public static JSONObject fromByteArray(byte[] bytes) {
-    String jsonString = new String(bytes);
+    String jsonString = new String(bytes, StandardCharsets.UTF_8);
+    return new JSONObject(jsonString);
+  }
+
+  // the frame from position to limit, without copying it into a byte[] first
+  public static JSONObject fromByteBuffer(ByteBuffer frame) {
+    String jsonString = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(),
+        StandardCharsets.UTF_8);
     return new JSONObject(jsonString);
   }
   
   public static byte[] toByteArray(JSONObject object) {
-    return object.toString().getBytes();
+    return object.toString().getBytes(StandardCharsets.UTF_8);
   }
 }
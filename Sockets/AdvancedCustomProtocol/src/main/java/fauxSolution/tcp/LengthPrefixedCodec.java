@@ -0,0 +1,97 @@
+package fauxSolution.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The framing of this protocol: every message is sent as
+ *   length(4-byte int, big-endian), payload(length bytes)
+ * the same bytes NetworkUtils.Send writes, so old and new peers understand
+ * each other.
+ *
+ * Reading loops until the whole frame is there, into a buffer from the
+ * pool. Frames larger than maxFrameSize are refused before anything is
+ * allocated for them, a broken or hostile peer cannot make us allocate
+ * gigabytes by sending a large length. Writing sends the header and the
+ * payload with one gathering write instead of two writes.
+ */
+public class LengthPrefixedCodec implements FrameCodec {
+  public static final int HEADER_SIZE = 4;
+  /** large enough for the image, small enough that a bad length cannot hurt */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  private final BufferPool pool;
+  private final int maxFrameSize;
+  // reused for every frame of this connection
+  private final ByteBuffer readHeader = ByteBuffer.allocate(HEADER_SIZE);
+  private final ByteBuffer writeHeader = ByteBuffer.allocate(HEADER_SIZE);
+
+  /**
+   * @param pool where frames are read into, can be shared by all connections
+   * @param maxFrameSize largest payload accepted, in bytes
+   */
+  public LengthPrefixedCodec(BufferPool pool, int maxFrameSize) {
+    this.pool = pool;
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  @Override
+  public ByteBuffer read(ReadableByteChannel in) throws IOException {
+    readHeader.clear();
+    if (!readFully(in, readHeader)) {
+      if (readHeader.position() == 0) {
+        return null; // closed between two frames
+      }
+      throw new EOFException("Connection closed in a frame header");
+    }
+    int length = readHeader.getInt(0);
+    if (length < 0 || length > maxFrameSize) {
+      throw new ProtocolException("Frame of " + length + " bytes, at most " + maxFrameSize + " allowed");
+    }
+    ByteBuffer frame = pool.acquire(length);
+    if (!readFully(in, frame)) {
+      pool.release(frame);
+      throw new EOFException("Connection closed after " + frame.position() + " of " + length + " bytes");
+    }
+    return frame.flip();
+  }
+
+  /**
+   * @return false if the channel ended before the buffer was full
+   */
+  private static boolean readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void write(GatheringByteChannel out, ByteBuffer... payload) throws IOException {
+    long length = 0;
+    for (ByteBuffer part : payload) {
+      length += part.remaining();
+    }
+    if (length > maxFrameSize) {
+      throw new ProtocolException("Frame of " + length + " bytes, at most " + maxFrameSize + " allowed");
+    }
+    ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+    buffers[0] = writeHeader.clear().putInt((int) length).flip();
+    System.arraycopy(payload, 0, buffers, 1, payload.length);
+    long left = length + HEADER_SIZE;
+    while (left > 0) {
+      left -= out.write(buffers);
+    }
+  }
+
+  @Override
+  public void release(ByteBuffer frame) {
+    pool.release(frame);
+  }
+}
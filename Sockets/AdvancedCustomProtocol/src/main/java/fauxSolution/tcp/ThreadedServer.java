@@ -0,0 +1,100 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Same protocol as Server, but every connection gets its own thread, so
+ * clients do not wait for each other. The threads spend nearly all their
+ * time blocked in a read, so they are virtual threads where the JVM has
+ * them (Java 21 on), otherwise platform threads with a small stack. Only a
+ * few of them answer a request at the same time, see Connection.
+ *
+ * At most maxConnections clients are connected at the same time, a client
+ * beyond that gets an error response and is disconnected right away.
+ *
+ * Arguments: [port, default 9000] [requests answered at the same time,
+ * default twice the number of processors] [maxConnections, default 10000]
+ */
+public class ThreadedServer {
+  private static final long STACK_SIZE = 256 * 1024;
+  // a burst of connecting clients queues here instead of being refused
+  private static final int BACKLOG = 1024;
+
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 9000;
+    int workers = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+    int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    Semaphore working = new Semaphore(workers);
+    Semaphore connections = new Semaphore(maxConnections);
+    ExecutorService threads = connectionThreads();
+    try (ServerSocketChannel serv = ServerSocketChannel.open()) {
+      serv.bind(new InetSocketAddress(port), BACKLOG);
+      System.out.println("Threaded server waiting for connects on port " + port);
+      int id = 0;
+      while (true) {
+        SocketChannel sock = serv.accept();
+        if (!connections.tryAcquire()) {
+          refuse(sock, id++, maxConnections);
+          continue;
+        }
+        Connection connection = new Connection(sock, id, Server.POOL, working);
+        threads.execute(() -> {
+          try {
+            connection.run();
+          } finally {
+            connections.release();
+          }
+        });
+        if (id % 1000 == 0) {
+          System.out.println("Client " + id + " connected, "
+              + (maxConnections - connections.availablePermits()) + " connections open");
+        }
+        id++;
+      }
+    } finally {
+      threads.shutdown();
+    }
+  }
+
+  /**
+   * @return a virtual thread per connection if this JVM has them, a platform
+   *         thread with a small stack otherwise
+   */
+  private static ExecutorService connectionThreads() {
+    try {
+      // only available from Java 21 on, so look it up at runtime
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.out.println("No virtual threads in this JVM, using a thread per connection");
+    }
+    return Executors.newCachedThreadPool(task -> {
+      Thread thread = new Thread(null, task, "client", STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Tells a client that there are too many connections and closes its
+   * socket, the error is what its first request gets as the response
+   */
+  private static void refuse(SocketChannel sock, int id, int maxConnections) {
+    try (sock) {
+      FrameCodec codec = new LengthPrefixedCodec(Server.POOL, LengthPrefixedCodec.DEFAULT_MAX_FRAME_SIZE);
+      codec.write(sock, ByteBuffer.wrap(JsonUtils.toByteArray(
+          Server.error("Too many connections, try again later"))));
+    } catch (IOException e) {
+      // the client is gone already
+    }
+    System.out.println("Client " + id + " refused, " + maxConnections + " connections open");
+  }
+}
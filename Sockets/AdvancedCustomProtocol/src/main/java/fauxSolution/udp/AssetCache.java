@@ -0,0 +1,90 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file turned into the bytes of a response once, instead of on every
+ * request. When the file changes (modification time or size) it is read and
+ * encoded again, checked at most once per CHECK_INTERVAL so a request does
+ * not even cost a look at the file. Safe to use from many threads.
+ */
+public class AssetCache {
+  private static final long CHECK_INTERVAL_NANOS = 1_000_000_000L;
+
+  /**
+   * Turns the content of the file into the response
+   */
+  public interface Encoder {
+    byte[] encode(byte[] content) throws IOException;
+  }
+
+  private static class Entry {
+    final long modified;
+    final long size;
+    final byte[] response;
+    final long checkedAt;
+
+    Entry(long modified, long size, byte[] response, long checkedAt) {
+      this.modified = modified;
+      this.size = size;
+      this.response = response;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private final Path file;
+  private final Encoder encoder;
+  private volatile Entry entry;
+
+  public AssetCache(Path file, Encoder encoder) {
+    this.file = file;
+    this.encoder = encoder;
+  }
+
+  /**
+   * @return the encoded file, do not change it, it is shared by all requests
+   * @throws IOException if the file cannot be read and was never read before
+   */
+  public byte[] get() throws IOException {
+    Entry current = entry;
+    if (current != null && System.nanoTime() - current.checkedAt < CHECK_INTERVAL_NANOS) {
+      return current.response;
+    }
+    return reload();
+  }
+
+  private synchronized byte[] reload() throws IOException {
+    Entry current = entry;
+    long now = System.nanoTime();
+    if (current != null && now - current.checkedAt < CHECK_INTERVAL_NANOS) {
+      return current.response; // another thread just checked
+    }
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      if (current == null) {
+        throw e;
+      }
+      // gone for now, keep the last version rather than failing requests
+      System.err.println("Cannot read " + file.toAbsolutePath() + ", still using the cached version: " + e);
+      entry = new Entry(current.modified, current.size, current.response, now);
+      return current.response;
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    long size = attributes.size();
+    if (current != null && current.modified == modified && current.size == size) {
+      entry = new Entry(modified, size, current.response, now);
+      return current.response;
+    }
+    byte[] response = encoder.encode(Files.readAllBytes(file));
+    entry = new Entry(modified, size, response, now);
+    if (current != null) {
+      System.out.println("Reloaded " + file);
+    }
+    return response;
+  }
+}
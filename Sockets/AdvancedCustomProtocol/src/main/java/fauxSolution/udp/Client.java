@@ -8,7 +8,7 @@ import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.Base64;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
 
 import javax.imageio.ImageIO;
@@ -44,12 +44,14 @@ public static JSONObject quote() {
 public static JSONObject image() {
   JSONObject request = new JSONObject();
   request.put("selected", 3);
+  request.put("binary", true); // raw bytes instead of Base64 if the server can
   return request;
 }
 
 public static JSONObject random() {
   JSONObject request = new JSONObject();
   request.put("selected", 4);
+  request.put("binary", true);
   return request;
 }
 
@@ -90,7 +92,7 @@ public static JSONObject random() {
         if (request != null) {
           NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
           NetworkUtils.Tuple responseTuple = NetworkUtils.Receive(sock);
-          JSONObject response = JsonUtils.fromByteArray(responseTuple.Payload);
+          JSONObject response = BinaryMessage.decode(ByteBuffer.wrap(responseTuple.Payload));
           if (response.has("error")) {
               System.out.println(response.getString("error"));
             } else {
@@ -101,8 +103,7 @@ public static JSONObject random() {
                 break;
               case (2): {
               	  System.out.println("Your image");
-                Base64.Decoder decoder = Base64.getDecoder();
-                byte[] bytes = decoder.decode(response.getString("data"));
+                byte[] bytes = BinaryMessage.data(response);
                 ImageIcon icon = null;
                 try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                   BufferedImage image = ImageIO.read(bais);
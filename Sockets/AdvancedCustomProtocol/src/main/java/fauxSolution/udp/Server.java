@@ -1,20 +1,17 @@
 package fauxSolution.udp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.nio.file.Paths;
 import java.util.Base64;
-import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.json.*;
 
 public class Server {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
+   * (optional)"binary": <boolean: image as a binary message, see BinaryMessage>,
    * (optional)"min": <int>, (optional)"max":<int> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
@@ -40,44 +37,45 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
+  // the responses are the same every time, they are serialized once
+  private static final byte[] JOKE = JsonUtils.toByteArray(joke());
+  private static final byte[] QUOTE = JsonUtils.toByteArray(quote());
+  private static final AssetCache IMAGE = new AssetCache(Paths.get("img/To-Funny-For-Words1.png"), png -> {
     JSONObject json = new JSONObject();
     json.put("datatype", 2);
-
     json.put("type", "image");
+    json.put("data", Base64.getEncoder().encodeToString(png));
+    return JsonUtils.toByteArray(json);
+  });
+  private static final AssetCache IMAGE_BINARY = new AssetCache(Paths.get("img/To-Funny-For-Words1.png"), png -> {
+    JSONObject header = new JSONObject();
+    header.put("datatype", 2);
+    header.put("type", "image");
+    return BinaryMessage.encode(header, png);
+  });
 
-    File file = new File("img/To-Funny-For-Words1.png");
-    if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
-    }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
-    }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
+  /**
+   * @param binary true for a binary message, false for Base64 in JSON
+   * @return the serialized image response, read and encoded only when the
+   *         image file changed
+   */
+  public static byte[] image(boolean binary) {
+    try {
+      return binary ? IMAGE_BINARY.get() : IMAGE.get();
+    } catch (IOException e) {
+      System.err.println("Cannot read image: " + e);
+      return JsonUtils.toByteArray(error("Image is not available"));
     }
-    return error("Unable to save image to byte array");
   }
 
-  public static JSONObject random() throws IOException {
-    Random rand = new Random();
-    int random = rand.nextInt(3);
-    JSONObject json = new JSONObject();
+  public static byte[] random(boolean binary) {
+    int random = ThreadLocalRandom.current().nextInt(3);
     if (random == 0) {
-      json = joke();
+      return JOKE;
     } else if (random == 1) {
-      json = quote();
-    } else if (random == 2) {
-      json = image();
+      return QUOTE;
     }
-    return json;
+    return image(binary);
   }
 
   public static JSONObject error(String err) {
@@ -86,6 +84,39 @@ public class Server {
     return json;
   }
 
+  /**
+   * @return the serialized response, shared, do not change it
+   */
+  public static byte[] handle(JSONObject message) {
+    byte[] returnMessage;
+    if (message.has("selected")) {
+      if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+        int choice = message.getInt("selected");
+        switch (choice) {
+        case (1):
+          returnMessage = JOKE;
+          break;
+        case (2):
+          returnMessage = QUOTE;
+          break;
+        case (3):
+          returnMessage = image(BinaryMessage.accepted(message));
+          break;
+        case (4):
+          returnMessage = random(BinaryMessage.accepted(message));
+          break;
+        default:
+          returnMessage = JsonUtils.toByteArray(error("Invalid selection: " + choice + " is not an option"));
+        }
+      } else {
+        returnMessage = JsonUtils.toByteArray(error("Selection must be an integer"));
+      }
+    } else {
+      returnMessage = JsonUtils.toByteArray(error("Invalid message received"));
+    }
+    return returnMessage;
+  }
+
   public static void main(String[] args) throws IOException {
     DatagramSocket sock = null;
     try {
@@ -96,34 +127,7 @@ public class Server {
           while (true) {
             NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
             JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            byte[] output = JsonUtils.toByteArray(returnMessage);
+            byte[] output = handle(message);
             NetworkUtils.Send(sock, messageTuple.Address, messageTuple.Port, output);
           }
         } catch (IOException e) {
@@ -1,9 +1,45 @@
 import java.io.*;
 import java.net.*;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class SimpleWebServer {
 
+    // limits, set with -Phttp.* properties e.g. gradle run -Phttp.maxConnections=100
+
+    /** clients served at the same time, one thread each, more get a 503 */
+    static final int MAX_CONNECTIONS = Integer.getInteger("http.maxConnections", 50);
+
+    /** the request line has to arrive this long after the connection was accepted */
+    static final int HEADER_TIMEOUT_MILLIS = Integer.getInteger("http.headerTimeoutMillis", 10000);
+
+    /** a client that does not read any of its response for this long is disconnected */
+    static final int REQUEST_TIMEOUT_MILLIS = Integer.getInteger("http.requestTimeoutMillis", 30000);
+
+    /** longest request line accepted */
+    static final int MAX_HEADER_BYTES = Integer.getInteger("http.maxHeaderBytes", 8192);
+
+    /** seconds a client that got a 503 is asked to wait before trying again */
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger("http.retryAfterSeconds", 1);
+
+    /** closes the sockets of clients that stopped reading */
+    static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** a permit per client being served, when none is left a new client is turned away right away */
+    static final Semaphore CONNECTIONS = new Semaphore(MAX_CONNECTIONS);
+
+    // threads are reused, there are never more than MAX_CONNECTIONS busy ones
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
@@ -44,7 +80,7 @@ try {
         }
 
         while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
+            AsyncLog.info("Ready...");
             try {
                 sock = server.accept();
                 createClientThread(sock);
@@ -55,15 +91,39 @@ try {
     }
 
     /**
-     * Take the newly accepted socket and make it a thread by passing it to
-     * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * Take the newly accepted socket and hand it to a worker thread by passing
+     * it to inner class ClientHandler which implements Runnable. If
+     * MAX_CONNECTIONS clients are being served already it gets a 503 instead.
      *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
-        thread.start();
+        if (CONNECTIONS.tryAcquire()) {
+            workers.execute(new ClientHandler(sock));
+        } else {
+            reject(sock);
+        }
+    }
+
+    /**
+     * Tells a client we have no thread for that it should come back later.
+     * The answer fits into the socket buffer, so the accepting thread does
+     * not wait for the client.
+     *
+     * @param sock
+     */
+    private void reject(Socket sock) {
+        try (sock) {
+            String body = "<html>Server is busy, please try again</html>";
+            sock.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+                    + "Content-Type: text/html\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: close\r\n\r\n" + body).getBytes());
+            AsyncLog.warn("Busy, rejected a client");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 }
 
@@ -77,9 +137,15 @@ try {
 class ClientHandler implements Runnable {
 
     //establish a new socket to read client input from (via BufferedReader)
+    Socket socket = null;
     InputStream in = null;
     OutputStream out = null;
 
+    // when the last block of the response was written, checked by watchWrites
+    private volatile long lastWrite;
+    private volatile ScheduledFuture<?> deadline;
+    private volatile boolean done;
+
     /**
      * ClientHandler is the constructor that accepts a client socket & chains it
      * to an input and output stream. These are used by the run method to create
@@ -90,6 +156,7 @@ class ClientHandler implements Runnable {
     public ClientHandler(Socket clientSocket) {
         try {
             //Set local socket to clientSocket received via constructor
+            socket = clientSocket;
             in = clientSocket.getInputStream();
             out = clientSocket.getOutputStream();
 
@@ -98,24 +165,25 @@ class ClientHandler implements Runnable {
         }
     }//end constructor
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request and writes the response. A file is streamed to the
+     * client in blocks, so a large file never has to fit into memory.
+     *
+     * @param inStream socket input stream
+     * @param outStream socket output stream
+     */
+    public void writeResponse(InputStream inStream, OutputStream outStream) {
 
         byte[] response = null;
-        BufferedReader in = null;
 
         try {
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
             // Get header and save the filename from the GET line:
             //    example GET format: GET /index.html HTTP/1.1
 
             String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
+            String line = readRequestLine(new BufferedInputStream(inStream));
+            AsyncLog.info("Received: " + line);
             if (line != null && !line.trim().equals("")) {
                 StringTokenizer st = new StringTokenizer(line);
                 if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
@@ -125,7 +193,9 @@ class ClientHandler implements Runnable {
                     }
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
+            AsyncLog.info("FINISHED REQUEST, STARTING RESPONSE\n");
+            lastWrite = System.currentTimeMillis();
+            watchWrites(SimpleWebServer.REQUEST_TIMEOUT_MILLIS);
 
             // Generate an appropriate response to the user
             if (filename == null) {
@@ -137,52 +207,130 @@ class ClientHandler implements Runnable {
                     response = ("<html>File not found: "
                             + filename + "</html>").getBytes();
                 } else {
-                    response = readFileInBytes(file);
+                    sendFile(file, outStream);
                 }
             }
+            if (response != null) {
+                outStream.write(response);
+            }
+        } catch (SocketTimeoutException e) {
+            AsyncLog.warn("Request line took too long, giving up");
+            try {
+                outStream.write("<html>Request timed out</html>".getBytes());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
+            try {
+                outStream.write(("<html>ERROR: "
+                        + e.getMessage() + "</html").getBytes());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
-        System.out.println("RESPONSE GENERATED!");
-        return response;
+        AsyncLog.info("RESPONSE SENT!");
     }
 
     /**
-     * Read bytes from a file and return them in the byte array. We read in
-     * blocks of 512 bytes for efficiency.
+     * Reads the request line. It has to arrive within the header timeout and
+     * may not be longer than MAX_HEADER_BYTES, so a client that sends one
+     * byte every few seconds or a line without end cannot keep a thread.
+     *
+     * @param inStream buffered socket input stream
+     * @return the line without its line break, null if the client closed the connection
+     * @throws SocketTimeoutException if the line did not arrive in time
+     * @throws IOException if reading fails or the line is too long
      */
-    public static byte[] readFileInBytes(File f)
-            throws IOException {
+    private String readRequestLine(InputStream inStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long deadline = System.currentTimeMillis() + SimpleWebServer.HEADER_TIMEOUT_MILLIS;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new SocketTimeoutException("Request line took too long");
+            }
+            socket.setSoTimeout((int) left);
+            int b = inStream.read();
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            }
+            if (b == '\n') {
+                return line.toString("UTF-8").trim();
+            }
+            if (line.size() >= SimpleWebServer.MAX_HEADER_BYTES) {
+                throw new IOException("Request line is longer than " + SimpleWebServer.MAX_HEADER_BYTES + " bytes");
+            }
+            line.write(b);
+        }
+    }
 
-        byte[] result = new byte[(int) f.length()];
+    /**
+     * Copy a file to the output stream. We read in blocks of 8 KB, so only
+     * one block is in memory at a time no matter how large the file is.
+     * Every block written counts as progress for watchWrites.
+     */
+    public void sendFile(File f, OutputStream out)
+            throws IOException {
 
-        try {
-            new FileInputStream(f).read(result);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        try (FileInputStream file = new FileInputStream(f)) {
+            byte[] buffer = new byte[8192];
+            int numRead;
+            while ((numRead = file.read(buffer)) > 0) {
+                out.write(buffer, 0, numRead);
+                lastWrite = System.currentTimeMillis();
+            }
         }
+    }
 
-        return result;
+    /**
+     * Disconnects the client once none of its response could be written for
+     * REQUEST_TIMEOUT_MILLIS. A large file may take as long as it needs, only
+     * a client that stopped reading loses the thread. Reading the request is
+     * limited by readRequestLine.
+     *
+     * @param delayMillis when to check next
+     */
+    private void watchWrites(long delayMillis) {
+        deadline = SimpleWebServer.DEADLINES.schedule(() -> {
+            if (done) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - lastWrite;
+            if (idle < SimpleWebServer.REQUEST_TIMEOUT_MILLIS) {
+                watchWrites(SimpleWebServer.REQUEST_TIMEOUT_MILLIS - idle);
+                return;
+            }
+            AsyncLog.warn("Client did not read for " + idle + " ms, disconnecting");
+            try {
+                socket.setSoLinger(true, 0); // reset, do not try to send the rest
+                socket.shutdownOutput();
+                socket.close();
+            } catch (IOException ex) {
+                // closed already
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void run() {
-        System.out.println("Starting thread");
+        AsyncLog.info("Starting thread");
         try {
-            out.write(createResponse(in));
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            writeResponse(in, out);
         } finally {
+            done = true;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
             try {
                 in.close();
                 out.close();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
+            SimpleWebServer.CONNECTIONS.release();
         }
 
-        System.out.println("Ending thread");
+        AsyncLog.info("Ending thread");
     }
 }
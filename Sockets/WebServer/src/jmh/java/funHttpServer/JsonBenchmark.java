@@ -0,0 +1,108 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A /json request the way a connection answers it: parse the head,
+ * createResponse (routing, compression, conditional requests, metrics) and
+ * encode the response. json is what the server does now, jsonBuiltPerRequest
+ * the same with the handler /json had before the responses were pre-encoded:
+ * keySet().toArray() to pick an image, a StringBuilder for the JSON and
+ * encoding head and body for every request. That handler is registered as
+ * /json-built so both go through the same router.
+ *
+ * Run with: gradle Benchmark -Pbench=JsonBenchmark -Pprof=gc
+ * gc.alloc.rate.norm is the allocation per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+  private static final String JSON_REQUEST = "GET /json HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "Accept: application/json\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "\r\n";
+
+  private final HashMap<String, String> images = new HashMap<>() {
+    {
+      put("streets", "https://iili.io/JV1pSV.jpg");
+      put("bread", "https://iili.io/Jj9MWG.jpg");
+    }
+  };
+  private final Random random = new Random();
+
+  private WebServer server;
+  private HttpParser parser;
+  private Request request;
+  private ByteBuffer json;
+  private ByteBuffer jsonBuilt;
+
+  @Setup
+  public void setup() {
+    server = new WebServer(ServerConfig.fromSystemProperties());
+    server.router.get("json-built", this::builtPerRequest);
+    parser = new HttpParser(16 * 1024, 100);
+    request = new Request(100);
+    json = ByteBuffer.wrap(JSON_REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+    jsonBuilt = ByteBuffer.wrap(JSON_REQUEST.replace("/json", "/json-built").getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * What the server does for /json now
+   */
+  @Benchmark
+  public byte[] json() throws IOException {
+    return answer(json);
+  }
+
+  /**
+   * What the server did for /json before
+   */
+  @Benchmark
+  public byte[] jsonBuiltPerRequest() throws IOException {
+    return answer(jsonBuilt);
+  }
+
+  private byte[] answer(ByteBuffer head) throws IOException {
+    head.clear();
+    parser.parse(head, request);
+    Response response = server.createResponse(request).join();
+    return response.encode(request.keepAlive());
+  }
+
+  /**
+   * The /json handler before the responses were pre-encoded
+   */
+  private Response builtPerRequest(Request request, Router.Params params) {
+    int index = random.nextInt(images.size());
+    String header = (String) images.keySet().toArray()[index];
+    String url = images.get(header);
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return Response.json(builder.toString());
+  }
+}
@@ -0,0 +1,136 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the byte level HttpParser with the ways the servers used to read
+ * requests: a new BufferedReader per request with readLine/substring (the fun
+ * WebServer) and readLine with a StringTokenizer (SimpleWebServer).
+ *
+ * Run with: gradle Benchmark -Pbench=ParserBenchmark
+ * Add -prof gc to the JMH arguments to see the allocation per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+  // what a browser sends for the root page
+  private static final String BROWSER_REQUEST = "GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Cache-Control: max-age=0\r\n"
+      + "Upgrade-Insecure-Requests: 1\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+      + "Sec-Fetch-Site: none\r\n"
+      + "Sec-Fetch-Mode: navigate\r\n"
+      + "Sec-Fetch-Dest: document\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Accept-Language: en-US,en;q=0.9\r\n"
+      + "\r\n";
+
+  private byte[] bytes;
+  private ByteBuffer buf;
+  private HttpParser parser;
+  private Request request;
+
+  @Setup
+  public void setup() {
+    bytes = BROWSER_REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+    buf = ByteBuffer.wrap(bytes);
+    parser = new HttpParser(16 * 1024, 100);
+    request = new Request(100);
+  }
+
+  @Benchmark
+  public void byteParser(Blackhole blackhole) throws IOException {
+    buf.clear();
+    parser.parse(buf, request);
+    blackhole.consume(request.isMethod("GET"));
+    blackhole.consume(request.keepAlive());
+    blackhole.consume(request.pathEnd);
+  }
+
+  /**
+   * Same as byteParser, but also makes the Strings a route usually needs
+   */
+  @Benchmark
+  public void byteParserWithStrings(Blackhole blackhole) throws IOException {
+    buf.clear();
+    parser.parse(buf, request);
+    blackhole.consume(request.target());
+    blackhole.consume(request.header("Host"));
+    blackhole.consume(request.keepAlive());
+  }
+
+  /**
+   * How the fun WebServer parsed requests before HttpParser
+   */
+  @Benchmark
+  public void bufferedReader(Blackhole blackhole) throws IOException {
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+    String line = in.readLine();
+    int firstSpace = line.indexOf(" ");
+    int secondSpace = line.indexOf(" ", firstSpace + 1);
+    String method = line.substring(0, firstSpace);
+    String path = line.substring(firstSpace + 2, secondSpace);
+    String version = line.substring(secondSpace + 1);
+    Map<String, String> headers = new HashMap<>();
+    while ((line = in.readLine()) != null && !line.equals("")) {
+      int colon = line.indexOf(":");
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+    blackhole.consume(method.equals("GET"));
+    blackhole.consume("HTTP/1.1".equals(version) && !"close".equalsIgnoreCase(headers.get("connection")));
+    blackhole.consume(path);
+  }
+
+  /**
+   * How SimpleWebServer parses requests
+   */
+  @Benchmark
+  public void stringTokenizer(Blackhole blackhole) throws IOException {
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+    String filename = null;
+    String line = in.readLine();
+    if (line != null && !line.trim().equals("")) {
+      StringTokenizer st = new StringTokenizer(line);
+      if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
+        filename = st.nextToken();
+        if (filename.startsWith("/")) {
+          filename = filename.substring(1);
+        }
+      }
+    }
+    blackhole.consume(filename);
+  }
+}
@@ -0,0 +1,246 @@
+package funHttpServer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the server that does not make request threads wait for the console.
+ * System.out.println takes a lock and writes to the terminal on the thread
+ * that calls it, so with many connections the threads queue up behind each
+ * other just to print "Received: ...".
+ *
+ * Here a log call only puts the line into a ring buffer. One background
+ * thread takes the lines out and writes them in batches. Putting a line in
+ * takes no lock: a thread claims a slot by moving the tail with a
+ * compare-and-set. When the writer cannot keep up and the ring is full, the
+ * line is dropped and counted instead of making the caller wait, the writer
+ * reports the count.
+ *
+ * Configured with system properties:
+ *   log.level     DEBUG, INFO (default), WARN, ERROR or OFF
+ *   log.sample    only log every n-th INFO or DEBUG line on average (default 1, all)
+ *   log.file      append to this file instead of the console
+ *   log.capacity  lines the ring holds, rounded up to a power of two (default 8192)
+ */
+final class AsyncLog {
+
+  enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+  private static final AsyncLog LOG = new AsyncLog(
+      level(System.getProperty("log.level", "INFO")),
+      Integer.getInteger("log.sample", 1),
+      System.getProperty("log.file"),
+      Integer.getInteger("log.capacity", 8192));
+
+  /**
+   * A mistyped level must not stop the server, it logs at INFO instead
+   */
+  private static Level level(String name) {
+    try {
+      return Level.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Unknown log.level " + name + ", logging at INFO");
+      return Level.INFO;
+    }
+  }
+
+  private final Level level;
+  private final int sample;
+  private final OutputStream out;
+
+  // ring buffer: a slot can be written when its sequence equals the claimed
+  // position and read when it is one more than that
+  private final AtomicReferenceArray<String> lines;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private long head = 0; // only used by the writer thread
+
+  // lines are collected here and written together, only used by writeBatch
+  private final byte[] batch = new byte[64 * 1024];
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean sleeping = false;
+
+  private AsyncLog(Level level, int sample, String file, int capacity) {
+    this.level = level;
+    this.sample = Math.max(1, sample);
+    OutputStream stream = System.out;
+    if (file != null) {
+      try {
+        stream = new FileOutputStream(file, true);
+      } catch (IOException e) {
+        System.out.println("Cannot open log file " + file + ", logging to the console: " + e.getMessage());
+      }
+    }
+    this.out = stream;
+
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    lines = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+
+    writer = new Thread(this::drain, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    // write what is still in the ring when the server is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-flush"));
+  }
+
+  static boolean isEnabled(Level level) {
+    return level.compareTo(LOG.level) >= 0 && level != Level.OFF;
+  }
+
+  static void debug(String line) {
+    LOG.log(Level.DEBUG, line);
+  }
+
+  static void info(String line) {
+    LOG.log(Level.INFO, line);
+  }
+
+  static void warn(String line) {
+    LOG.log(Level.WARN, line);
+  }
+
+  static void error(String line) {
+    LOG.log(Level.ERROR, line);
+  }
+
+  /**
+   * @return lines that were dropped because the ring was full
+   */
+  static long dropped() {
+    return LOG.dropped.get();
+  }
+
+  private void log(Level level, String line) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    // warnings and errors are rare and always interesting
+    if (sample > 1 && level.compareTo(Level.WARN) < 0 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+      return;
+    }
+    if (level != Level.INFO) {
+      line = level + " " + line;
+    }
+    if (!offer(line)) {
+      dropped.incrementAndGet();
+      return;
+    }
+    if (sleeping) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Puts a line into the ring, can be called by any number of threads
+   * @return false if the ring is full
+   */
+  private boolean offer(String line) {
+    while (true) {
+      long position = tail.get();
+      int slot = (int) position & mask;
+      long sequence = sequences.get(slot);
+      if (sequence < position) {
+        return false; // the writer has not taken the line a lap ago out yet
+      }
+      if (sequence == position && tail.compareAndSet(position, position + 1)) {
+        lines.set(slot, line);
+        sequences.set(slot, position + 1); // publishes the line to the writer
+        return true;
+      }
+      // another thread claimed this position first, try the next one
+    }
+  }
+
+  /**
+   * Takes the next line out of the ring, only called by the writer
+   * @return null if there is none
+   */
+  private String poll() {
+    int slot = (int) head & mask;
+    if (sequences.get(slot) != head + 1) {
+      return null; // empty, or the line is claimed but not set yet
+    }
+    String line = lines.get(slot);
+    lines.set(slot, null);
+    sequences.set(slot, head + mask + 1); // free for the next lap
+    head++;
+    return line;
+  }
+
+  private void drain() {
+    long reportedDrops = 0;
+    while (true) {
+      boolean wrote = writeBatch();
+      long drops = dropped.get();
+      if (drops != reportedDrops) {
+        byte[] warning = ("WARN log buffer was full, dropped " + (drops - reportedDrops) + " lines\n")
+            .getBytes(StandardCharsets.UTF_8);
+        write(warning, warning.length);
+        reportedDrops = drops;
+      }
+      if (!wrote) {
+        sleeping = true;
+        // check again after announcing the sleep, a line may have come in between
+        if (tail.get() == head) {
+          LockSupport.parkNanos(100_000_000L);
+        }
+        sleeping = false;
+      }
+    }
+  }
+
+  /**
+   * Writes the lines in the ring with as few write calls as possible
+   * @return false if the ring was empty
+   */
+  private synchronized boolean writeBatch() {
+    boolean any = false;
+    int length = 0;
+    String line;
+    while ((line = poll()) != null) {
+      any = true;
+      byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+      if (length + bytes.length > batch.length) {
+        write(batch, length);
+        length = 0;
+      }
+      if (bytes.length > batch.length) {
+        write(bytes, bytes.length);
+        continue;
+      }
+      System.arraycopy(bytes, 0, batch, length, bytes.length);
+      length += bytes.length;
+    }
+    if (length > 0) {
+      write(batch, length);
+    }
+    return any;
+  }
+
+  private void flush() {
+    writeBatch();
+  }
+
+  private void write(byte[] bytes, int length) {
+    try {
+      out.write(bytes, 0, length);
+      out.flush();
+    } catch (IOException e) {
+      // nowhere left to log it, the line is lost
+    }
+  }
+}
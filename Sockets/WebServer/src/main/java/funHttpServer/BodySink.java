@@ -0,0 +1,42 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Takes the body of a request while it arrives, for routes registered with
+ * Router.body. The connection hands the body over piece by piece as it reads
+ * it, so a body of any size passes through the connection's read buffer
+ * without ever being held in memory as a whole.
+ */
+interface BodySink {
+
+  /**
+   * @param data the next bytes of the body, without the chunk framing. The
+   *             buffer belongs to the connection, it is only valid during the call.
+   * @throws IOException if the bytes cannot be stored, or a
+   *         HttpParser.BadRequestException (e.g. 413) to reject the body
+   */
+  void write(ByteBuffer data) throws IOException;
+
+  /**
+   * The whole body arrived, completes {@link #response()}
+   * @throws IOException if it cannot be stored
+   */
+  void finish() throws IOException;
+
+  /**
+   * The body will never be complete: the client went away or sent something
+   * invalid. Throws away what was written and completes {@link #response()}
+   * exceptionally.
+   * @param reason what went wrong, a HttpParser.BadRequestException is
+   *               answered with its status
+   */
+  void abort(Throwable reason);
+
+  /**
+   * @return completes with the answer to the request once the body is done
+   */
+  CompletableFuture<Response> response();
+}
@@ -0,0 +1,40 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Keeps read buffers of connections that were closed, so new connections
+ * reuse them instead of allocating (and later collecting) a fresh buffer
+ * each. When the pool is empty a new buffer is made, when it is full a
+ * returned buffer is left to the garbage collector.
+ */
+class BufferPool {
+  private final int bufferSize;
+  private final ArrayBlockingQueue<ByteBuffer> free;
+
+  /**
+   * @param bufferSize size of every buffer
+   * @param maxPooled most buffers kept for reuse
+   */
+  BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+  }
+
+  /**
+   * @return an empty heap buffer in write mode
+   */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * @param buffer no longer used by its connection
+   */
+  void release(ByteBuffer buffer) {
+    buffer.clear();
+    free.offer(buffer);
+  }
+}
@@ -0,0 +1,73 @@
+package funHttpServer;
+
+/**
+ * Parses the Range header of a request (RFC 7233), e.g.
+ *   bytes=0-499        the first 500 bytes
+ *   bytes=500-         everything from byte 500 on
+ *   bytes=-500         the last 500 bytes
+ *   bytes=0-0,-1       several ranges, sent as multipart/byteranges
+ */
+class ByteRanges {
+  /** more ranges than this in one request are ignored and the whole file is sent */
+  static final int MAX_RANGES = 16;
+
+  /**
+   * @param header value of the Range header
+   * @param size length of the file
+   * @return first and last byte (inclusive) of every range that lies in the
+   *         file, two longs per range; an empty array if no range does (416);
+   *         null if the header is malformed or not about bytes, then the
+   *         whole file is sent as if there was no Range header
+   */
+  static long[] parse(String header, long size) {
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = header.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    long[] ranges = new long[specs.length * 2];
+    int count = 0;
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first, last;
+      try {
+        if (dash == 0) {
+          // suffix range: the last n bytes
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix == 0) {
+            continue; // asks for nothing
+          }
+          first = Math.max(0, size - suffix);
+          last = size - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          if (dash == spec.length() - 1) {
+            last = size - 1;
+          } else {
+            last = Long.parseLong(spec.substring(dash + 1));
+            if (last < first) {
+              return null;
+            }
+            last = Math.min(last, size - 1);
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (first >= size || first < 0) {
+        continue; // lies behind the end of the file
+      }
+      ranges[count++] = first;
+      ranges[count++] = last;
+    }
+    long[] satisfiable = new long[count];
+    System.arraycopy(ranges, 0, satisfiable, 0, count);
+    return satisfiable;
+  }
+}
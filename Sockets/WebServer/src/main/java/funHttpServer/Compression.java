@@ -0,0 +1,190 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses text responses (HTML, JSON, CSS, ...) for clients that send
+ * Accept-Encoding: gzip or deflate.
+ *
+ * Pages that are cached (see ResponseCache) are cached once per encoding, so
+ * they are compressed once and then sent compressed from memory. Everything
+ * else is compressed when it is sent, but only if the body is at least
+ * minBytes long, below that the headers cost more than we would save.
+ *
+ * Counts how many bytes compressing saved and how much time it took, so we
+ * can see if it is worth it.
+ */
+class Compression {
+
+  /**
+   * Content codings we can send, in the order we prefer them
+   */
+  enum Encoding {
+    GZIP("gzip"), DEFLATE("deflate"), IDENTITY("identity");
+
+    final String token;
+
+    Encoding(String token) {
+      this.token = token;
+    }
+  }
+
+  private final int minBytes;
+  private final int level;
+
+  // work done: bodies compressed, their size before and after, time spent
+  private final AtomicLong compressed = new AtomicLong();
+  private final AtomicLong compressedIn = new AtomicLong();
+  private final AtomicLong compressedOut = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  // compressed responses sent (cached ones many times) and the bytes that saved
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong savedBytes = new AtomicLong();
+
+  /**
+   * @param minBytes smallest body that is compressed
+   * @param level Deflater level, 1 (fast) to 9 (small)
+   */
+  Compression(int minBytes, int level) {
+    this.minBytes = minBytes;
+    this.level = level;
+  }
+
+  /**
+   * Picks the encoding from the Accept-Encoding header, e.g.
+   * "gzip, deflate, br" or "deflate;q=0.5, gzip;q=0"
+   * @param request the parsed request
+   * @return the encoding to send the response with
+   */
+  static Encoding negotiate(Request request) {
+    String accept = request.header("Accept-Encoding");
+    if (accept == null) {
+      return Encoding.IDENTITY;
+    }
+    double gzip = -1, deflate = -1, any = -1;
+    for (String part : accept.split(",")) {
+      String[] params = part.split(";");
+      String coding = params[0].trim().toLowerCase();
+      double q = 1;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        gzip = q;
+      } else if (coding.equals("deflate")) {
+        deflate = q;
+      } else if (coding.equals("*")) {
+        any = q;
+      }
+    }
+    // a coding that is not listed is as acceptable as "*"
+    gzip = gzip < 0 ? any : gzip;
+    deflate = deflate < 0 ? any : deflate;
+    if (gzip > 0 && gzip >= deflate) {
+      return Encoding.GZIP;
+    }
+    if (deflate > 0) {
+      return Encoding.DEFLATE;
+    }
+    return Encoding.IDENTITY;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header
+   * @return true for text formats, images and archives are compressed already
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    return contentType.startsWith("text/") || contentType.contains("json")
+        || contentType.contains("xml") || contentType.contains("javascript");
+  }
+
+  /**
+   * Compresses the byte body of the response if that is worth it. File
+   * bodies are sent as they are, see WebServer.file for small text files.
+   * @param response the response of a route
+   * @param encoding what the client accepts
+   * @return a compressed copy, or the response itself if it is not compressed
+   * @throws IOException if compressing fails
+   */
+  Response compress(Response response, Encoding encoding) throws IOException {
+    if (response.headers.containsKey("Content-Encoding") || !isCompressible(response.headers.get("Content-Type"))) {
+      return response;
+    }
+    if (!response.isFrozen()) {
+      // the response depends on Accept-Encoding, even when it is not compressed
+      response.header("Vary", "Accept-Encoding");
+    }
+    if (response.isStreamed() || encoding == Encoding.IDENTITY || response.body.length < minBytes) {
+      return response;
+    }
+
+    long start = System.nanoTime();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.body.length / 4 + 64);
+    Deflater deflater = null;
+    DeflaterOutputStream out;
+    if (encoding == Encoding.GZIP) {
+      // GZIPOutputStream ends its own deflater when it is closed
+      out = new GZIPOutputStream(bytes) {
+        {
+          def.setLevel(level);
+        }
+      };
+    } else {
+      deflater = new Deflater(level);
+      out = new DeflaterOutputStream(bytes, deflater);
+    }
+    try (out) {
+      out.write(response.body);
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+    byte[] body = bytes.toByteArray();
+    compressNanos.addAndGet(System.nanoTime() - start);
+    compressed.incrementAndGet();
+    compressedIn.addAndGet(response.body.length);
+    compressedOut.addAndGet(body.length);
+
+    Response result = new Response(response.status, response.reason, response.headers.get("Content-Type"), body);
+    result.headers.putAll(response.headers);
+    result.uncompressedLength = response.body.length;
+    return result.header("Content-Encoding", encoding.token);
+  }
+
+  /**
+   * Counts the bytes a compressed response saves when it is sent
+   * @param response the response about to be sent
+   */
+  void sent(Response response) {
+    if (response.uncompressedLength >= 0) {
+      sent.incrementAndGet();
+      savedBytes.addAndGet(response.uncompressedLength - response.body.length);
+    }
+  }
+
+  @Override
+  public String toString() {
+    long in = compressedIn.get();
+    long out = compressedOut.get();
+    return "compression compressed=" + compressed.get() + " in=" + in + " out=" + out
+        + " ratio=" + (in == 0 ? "-" : String.format("%.2f", (double) out / in))
+        + " cpu=" + String.format("%.2fms", compressNanos.get() / 1e6)
+        + " sent=" + sent.get() + " savedBytes=" + savedBytes.get();
+  }
+}
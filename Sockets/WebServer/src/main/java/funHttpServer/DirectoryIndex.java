@@ -0,0 +1,154 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.TreeSet;
+
+/**
+ * In memory list of the files in a directory, used for the file list on the
+ * root page. The directory is listed once at startup, after that a
+ * WatchService tells us which files were created or deleted and only those
+ * names are added or removed. Only if the operating system lost events
+ * (OVERFLOW) the directory is listed again.
+ *
+ * The HTML fragment is rendered when it is asked for after a change, so a
+ * burst of changes is rendered once, and requests between changes get the
+ * same pre-rendered String.
+ */
+class DirectoryIndex {
+  private final Path dir;
+  // sorted so the list on the page does not jump around
+  private final TreeSet<String> names = new TreeSet<>();
+  private long version = 0;
+  // null when the names changed since it was rendered last
+  private String fragment = null;
+  private boolean watching = false;
+
+  /**
+   * Lists the directory and starts watching it on a daemon thread
+   * @param dir directory to index
+   */
+  DirectoryIndex(Path dir) {
+    this.dir = dir;
+    try {
+      WatchService watcher = dir.getFileSystem().newWatchService();
+      // register before listing, so no file created in between is missed
+      dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+      rescan();
+      watching = true;
+
+      Thread thread = new Thread(() -> watch(watcher), "index-" + dir);
+      thread.setDaemon(true);
+      thread.start();
+    } catch (IOException e) {
+      // without events we cannot trust the index, list the directory on every request
+      System.out.println("Cannot watch " + dir + ", listing it on every request: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return a number that changes whenever a file was added or removed
+   */
+  synchronized long version() {
+    if (!watching) {
+      rescan();
+    }
+    return version;
+  }
+
+  /**
+   * @return the HTML list of the files in the directory
+   */
+  synchronized String fragment() {
+    if (!watching) {
+      rescan();
+    }
+    if (fragment == null) {
+      fragment = render();
+    }
+    return fragment;
+  }
+
+  private String render() {
+    if (names.isEmpty()) {
+      return "No files in directory";
+    }
+    StringBuilder builder = new StringBuilder(names.size() * 32);
+    builder.append("<ul>\n");
+    for (String name : names) {
+      builder.append("<li>").append(escape(name)).append("</li>");
+    }
+    builder.append("</ul>\n");
+    return builder.toString();
+  }
+
+  private static String escape(String name) {
+    return name.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /**
+   * Lists the whole directory again
+   */
+  private synchronized void rescan() {
+    TreeSet<String> listed = new TreeSet<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+      for (Path entry : entries) {
+        listed.add(entry.getFileName().toString());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    if (!listed.equals(names)) {
+      names.clear();
+      names.addAll(listed);
+      changed();
+    }
+  }
+
+  private synchronized void update(WatchEvent.Kind<?> kind, String name) {
+    boolean changed = kind == StandardWatchEventKinds.ENTRY_CREATE ? names.add(name) : names.remove(name);
+    if (changed) {
+      changed();
+    }
+  }
+
+  private void changed() {
+    version++;
+    fragment = null;
+  }
+
+  /**
+   * Applies the watch events to the index until the directory goes away
+   */
+  private void watch(WatchService watcher) {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // events were dropped, we do not know what changed
+          rescan();
+        } else {
+          update(event.kind(), ((Path) event.context()).toString());
+        }
+      }
+      if (!key.reset()) {
+        // directory was deleted or cannot be watched anymore
+        synchronized (this) {
+          watching = false;
+        }
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package funHttpServer;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-Sent Events (text/event-stream) for any number of subscribers.
+ * An event is encoded to bytes once when it is published, and the same byte
+ * array is queued for every subscriber, so a thousand subscribers cost one
+ * encode per event and a thousand references, not a thousand strings.
+ *
+ * Every subscriber has its own queue of at most queueEvents events. A
+ * client that reads slower than events are published loses the oldest
+ * events it has not got yet instead of making the server buffer without
+ * limit, the ids of the events it does get show the gap.
+ */
+class EventStream {
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final int queueEvents;
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param queueEvents events kept for a subscriber that has not read them yet
+   */
+  EventStream(int queueEvents) {
+    this.queueEvents = Math.max(1, queueEvents);
+  }
+
+  /**
+   * Sends an event to everybody subscribed right now
+   * @param event event type, the "event:" field
+   * @param data payload, every line becomes a "data:" field
+   */
+  void publish(String event, String data) {
+    byte[] frame = encode(nextId.incrementAndGet(), event, data);
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(frame);
+    }
+  }
+
+  /**
+   * @return a new subscriber that gets every event published from now on,
+   *         until it is closed
+   */
+  Subscriber subscribe() {
+    Subscriber subscriber = new Subscriber();
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  /**
+   * @return number of open subscribers
+   */
+  int subscribers() {
+    return subscribers.size();
+  }
+
+  /**
+   * Encodes one event in the text/event-stream format
+   * @return id, event and data fields, terminated by an empty line
+   */
+  static byte[] encode(long id, String event, String data) {
+    StringBuilder frame = new StringBuilder(data.length() + 32);
+    frame.append("id: ").append(id).append('\n');
+    frame.append("event: ").append(event).append('\n');
+    for (String line : data.split("\r\n|\r|\n", -1)) {
+      frame.append("data: ").append(line).append('\n');
+    }
+    return frame.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return "events subscribers=" + subscribers.size() + " published=" + nextId.get() + " dropped=" + dropped.get();
+  }
+
+  /**
+   * The events one client has not got yet, read as the streamed body of its
+   * response. Reading takes bytes straight from the shared event arrays.
+   * Closing the response unsubscribes.
+   */
+  class Subscriber implements Response.LiveSource {
+    // events not read yet, guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private boolean closed = false;
+    private Runnable listener;
+    // the event being read, only touched by the thread sending the response
+    private ByteBuffer current;
+
+    private void offer(byte[] frame) {
+      Runnable wake;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (queue.size() == queueEvents) {
+          queue.poll(); // too slow, the oldest event is lost
+          dropped.incrementAndGet();
+        }
+        queue.add(frame);
+        notifyAll();
+        wake = listener;
+        listener = null;
+      }
+      if (wake != null) {
+        wake.run();
+      }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      int total = 0;
+      while (dst.hasRemaining()) {
+        if (current == null || !current.hasRemaining()) {
+          byte[] next;
+          synchronized (this) {
+            next = queue.poll();
+            if (next == null && total == 0 && closed) {
+              return -1;
+            }
+          }
+          if (next == null) {
+            break; // nothing more right now
+          }
+          current = ByteBuffer.wrap(next);
+        }
+        int length = Math.min(dst.remaining(), current.remaining());
+        ByteBuffer part = current.duplicate();
+        part.limit(part.position() + length);
+        dst.put(part);
+        current.position(current.position() + length);
+        total += length;
+      }
+      return total;
+    }
+
+    @Override
+    public synchronized void await() throws InterruptedIOException {
+      while (queue.isEmpty() && !closed) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for events");
+        }
+      }
+    }
+
+    @Override
+    public void onAvailable(Runnable listener) {
+      synchronized (this) {
+        if (queue.isEmpty() && !closed) {
+          this.listener = listener;
+          return;
+        }
+      }
+      listener.run();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+      return !closed;
+    }
+
+    @Override
+    public void close() {
+      subscribers.remove(this);
+      synchronized (this) {
+        closed = true;
+        queue.clear();
+        listener = null;
+        notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses HTTP request heads straight from a connection's read buffer.
+ * Nothing is copied or decoded: the parser only records where the method,
+ * path, query, version and headers are (see Request) and moves the buffer's
+ * position to the first byte after the head. Parsing a request allocates
+ * nothing, so one parser and one Request per connection serve every request
+ * on it.
+ *
+ * The buffer has to be a heap buffer in read mode (position at the first
+ * unparsed byte, limit after the last byte read). If the head is not
+ * complete yet, the parser remembers how far it looked and continues there
+ * once more bytes were read, even if the buffer was compacted in between.
+ */
+class HttpParser {
+
+  /**
+   * A request that cannot be answered normally. Carries the status code the
+   * client should get, e.g. 400 or 431.
+   */
+  static class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+    final String reason;
+
+    BadRequestException(int status, String reason, String message) {
+      super(message);
+      this.status = status;
+      this.reason = reason;
+    }
+  }
+
+  private final int maxHeaderBytes;
+  private final int maxHeaders;
+  // bytes after the buffer position that were already searched for the end of the head
+  private int scanned = 0;
+  // time spent in parse() on the head that is not complete yet, and on the last complete one
+  private long nanos = 0;
+  private long lastNanos = 0;
+
+  /**
+   * @param maxHeaderBytes largest request head (request line and headers) accepted
+   * @param maxHeaders most header lines accepted
+   */
+  HttpParser(int maxHeaderBytes, int maxHeaders) {
+    this.maxHeaderBytes = maxHeaderBytes;
+    this.maxHeaders = maxHeaders;
+  }
+
+  /**
+   * Parses the next request head in the buffer
+   * @param buf read buffer of the connection, in read mode
+   * @param request filled with the offsets of the parsed request
+   * @return true if a complete head was parsed (the buffer position is then
+   *         at the body or next request), false if more bytes are needed
+   * @throws BadRequestException if the head is malformed or too large
+   */
+  boolean parse(ByteBuffer buf, Request request) throws BadRequestException {
+    long startNanos = System.nanoTime();
+    byte[] bytes = buf.array();
+    int start = buf.arrayOffset() + buf.position();
+    int limit = buf.arrayOffset() + buf.limit();
+
+    // tolerate empty lines in front of a request (RFC 7230 3.5)
+    while (start < limit && (bytes[start] == '\r' || bytes[start] == '\n')) {
+      start++;
+      buf.position(buf.position() + 1);
+      scanned = Math.max(0, scanned - 1);
+    }
+
+    int end = endOfHead(bytes, start, limit);
+    if (end < 0) {
+      if (limit - start >= maxHeaderBytes) {
+        throw new BadRequestException(431, "Request Header Fields Too Large",
+            "Request header is larger than " + maxHeaderBytes + " bytes");
+      }
+      nanos += System.nanoTime() - startNanos;
+      return false;
+    }
+    scanned = 0;
+
+    request.buf = bytes;
+    request.headerCount = 0;
+    request.queryStart = -1;
+    request.queryEnd = -1;
+    int lineEnd = nextLineEnd(bytes, start, end);
+    parseRequestLine(bytes, start, trimCr(bytes, start, lineEnd), request);
+
+    int line = lineEnd + 1;
+    while (line < end) {
+      lineEnd = nextLineEnd(bytes, line, end);
+      int contentEnd = trimCr(bytes, line, lineEnd);
+      if (contentEnd == line) {
+        break; // the empty line
+      }
+      parseHeaderLine(bytes, line, contentEnd, request);
+      line = lineEnd + 1;
+    }
+
+    request.bodyStart = end;
+    buf.position(end - buf.arrayOffset());
+    lastNanos = nanos + System.nanoTime() - startNanos;
+    nanos = 0;
+    return true;
+  }
+
+  /**
+   * @return nanoseconds parse() spent on the last complete head, over all
+   *         calls that looked at it
+   */
+  long lastParseNanos() {
+    return lastNanos;
+  }
+
+  /**
+   * Looks for the empty line ending the head, "\r\n\r\n" or just "\n\n"
+   * @return index after the empty line, or -1 if it has not arrived yet
+   */
+  private int endOfHead(byte[] bytes, int start, int limit) {
+    for (int i = start + Math.max(0, scanned - 3); i < limit; i++) {
+      if (bytes[i] == '\n') {
+        if (i + 1 < limit && bytes[i + 1] == '\n') {
+          return i + 2;
+        }
+        if (i + 2 < limit && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') {
+          return i + 3;
+        }
+      }
+    }
+    scanned = limit - start;
+    return -1;
+  }
+
+  private static int nextLineEnd(byte[] bytes, int from, int end) {
+    while (from < end && bytes[from] != '\n') {
+      from++;
+    }
+    return from;
+  }
+
+  private static int trimCr(byte[] bytes, int start, int lineEnd) {
+    return lineEnd > start && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+  }
+
+  /**
+   * example request line: GET /index.html?a=b HTTP/1.1
+   */
+  private static void parseRequestLine(byte[] bytes, int start, int end, Request request)
+      throws BadRequestException {
+    int firstSpace = indexOf(bytes, start, end, (byte) ' ');
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(bytes, firstSpace + 1, end, (byte) ' ');
+    if (firstSpace <= start || secondSpace < 0 || bytes[firstSpace + 1] != '/' || secondSpace + 1 >= end) {
+      throw new BadRequestException(400, "Bad Request",
+          "Malformed request line: " + new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+    request.methodStart = start;
+    request.methodEnd = firstSpace;
+
+    // the path is everything after the "/" up to the "?" or the space
+    request.pathStart = firstSpace + 2;
+    int question = indexOf(bytes, request.pathStart, secondSpace, (byte) '?');
+    if (question < 0) {
+      request.pathEnd = secondSpace;
+    } else {
+      request.pathEnd = question;
+      request.queryStart = question + 1;
+      request.queryEnd = secondSpace;
+    }
+
+    request.versionStart = secondSpace + 1;
+    request.versionEnd = end;
+  }
+
+  /**
+   * example header line: Content-Type: text/html
+   */
+  private void parseHeaderLine(byte[] bytes, int start, int end, Request request) throws BadRequestException {
+    int colon = indexOf(bytes, start, end, (byte) ':');
+    if (colon <= start) {
+      return; // not a header, ignore it like before
+    }
+    if (request.headerCount == maxHeaders) {
+      throw new BadRequestException(431, "Request Header Fields Too Large",
+          "More than " + maxHeaders + " headers");
+    }
+    int nameEnd = colon;
+    while (nameEnd > start && bytes[nameEnd - 1] == ' ') {
+      nameEnd--;
+    }
+    int valueStart = colon + 1;
+    while (valueStart < end && (bytes[valueStart] == ' ' || bytes[valueStart] == '\t')) {
+      valueStart++;
+    }
+    int valueEnd = end;
+    while (valueEnd > valueStart && (bytes[valueEnd - 1] == ' ' || bytes[valueEnd - 1] == '\t')) {
+      valueEnd--;
+    }
+
+    int i = request.headerCount * 4;
+    request.headerOffsets[i] = start;
+    request.headerOffsets[i + 1] = nameEnd;
+    request.headerOffsets[i + 2] = valueStart;
+    request.headerOffsets[i + 3] = valueEnd;
+    request.headerCount++;
+  }
+
+  private static int indexOf(byte[] bytes, int from, int end, byte value) {
+    for (int i = from; i < end; i++) {
+      if (bytes[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,112 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram in the style of HdrHistogram. Values are sorted
+ * into buckets where every power of two is split into 16 linear sub buckets,
+ * so any recorded value is off by at most ~6%. Recording is a couple of
+ * atomic increments, which makes it cheap enough to call on every request
+ * from many threads at once.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values below SUB_BUCKETS get their own bucket, then 16 per power of two
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one value
+   * @param value usually a duration in nanoseconds, negative values count as 0
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  /**
+   * @return all recorded values added up
+   */
+  public long sum() {
+    return sum.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Walks the buckets until the requested share of values is covered
+   * @param percentile between 0 and 100
+   * @return upper bound of the bucket holding the percentile
+   */
+  public long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * One line summary of the histogram, assuming nanosecond values
+   * @param name printed in front of the numbers
+   * @return e.g. "first-byte n=10 mean=1.20ms p50=1.10ms p90=... max=..."
+   */
+  public String summary(String name) {
+    return String.format("%s n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+        name, count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+        percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // position of the highest bit, the next SUB_BUCKET_BITS bits pick the sub bucket
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,212 @@
+package funHttpServer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the fun WebServer, served on /metrics.
+ * Recording is a few atomic adds (LongAdder where many threads add to the
+ * same counter), so the engines record every request.
+ *
+ * Phases of a request, all in nanoseconds:
+ *   parse      - finding the request line and headers in the read buffer
+ *   handle     - running the route until the response is ready, including
+ *                waiting for an upstream server
+ *   write      - from the response being ready until its last byte was
+ *                handed to the socket
+ *   first-byte - from accepting a connection until its first response byte
+ */
+class Metrics {
+  /** label for requests that did not match any route */
+  static final String NO_ROUTE = "(none)";
+
+  final LatencyHistogram parse = new LatencyHistogram();
+  final LatencyHistogram handle = new LatencyHistogram();
+  final LatencyHistogram write = new LatencyHistogram();
+  final LatencyHistogram firstByte = new LatencyHistogram();
+
+  // handle time by route template, the count of a histogram is the request count
+  private final ConcurrentHashMap<String, LatencyHistogram> routes = new ConcurrentHashMap<>();
+  private final AtomicLongArray statuses = new AtomicLongArray(600);
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final AtomicLong connectionsOpen = new AtomicLong();
+  private final LongAdder connectionsTotal = new LongAdder();
+  // connections closed because a deadline passed, by what took too long
+  private final LongAdder headerTimeouts = new LongAdder();
+  private final LongAdder requestTimeouts = new LongAdder();
+
+  void connectionOpened() {
+    connectionsOpen.incrementAndGet();
+    connectionsTotal.increment();
+  }
+
+  void connectionClosed() {
+    connectionsOpen.decrementAndGet();
+  }
+
+  void received(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  void sent(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Counts a connection that was given up because it was too slow
+   * @param phase "header" if the request head did not arrive in time,
+   *              "request" if the response was not done in time
+   */
+  void timedOut(String phase) {
+    (phase.equals("header") ? headerTimeouts : requestTimeouts).increment();
+  }
+
+  /**
+   * Counts a response that was sent without a route, e.g. a 400 for a
+   * malformed request or a 503 for a connection we had no room for
+   * @param status status code of the response
+   */
+  void rejected(int status) {
+    if (status >= 0 && status < statuses.length()) {
+      statuses.incrementAndGet(status);
+    }
+  }
+
+  /**
+   * Records a request that was handled
+   * @param route template of the route that answered it, e.g. "/file/*"
+   * @param status status code of the response
+   * @param nanos time the route took
+   */
+  void handled(String route, int status, long nanos) {
+    handle.record(nanos);
+    routes.computeIfAbsent(route, r -> new LatencyHistogram()).record(nanos);
+    if (status >= 0 && status < statuses.length()) {
+      statuses.incrementAndGet(status);
+    }
+  }
+
+  /**
+   * Prometheus text format, latencies in seconds
+   * @return the metrics, one value per line
+   */
+  String text() {
+    StringBuilder out = new StringBuilder(4096);
+    out.append("# TYPE http_requests_total counter\n");
+    for (Map.Entry<String, LatencyHistogram> route : sortedRoutes().entrySet()) {
+      out.append("http_requests_total{route=\"").append(route.getKey()).append("\"} ")
+          .append(route.getValue().count()).append('\n');
+    }
+    out.append("# TYPE http_responses_total counter\n");
+    for (int status = 0; status < statuses.length(); status++) {
+      long count = statuses.get(status);
+      if (count > 0) {
+        out.append("http_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+      }
+    }
+    out.append("# TYPE http_received_bytes_total counter\n");
+    out.append("http_received_bytes_total ").append(bytesIn.sum()).append('\n');
+    out.append("# TYPE http_sent_bytes_total counter\n");
+    out.append("http_sent_bytes_total ").append(bytesOut.sum()).append('\n');
+    out.append("# TYPE http_connections_open gauge\n");
+    out.append("http_connections_open ").append(connectionsOpen.get()).append('\n');
+    out.append("# TYPE http_connections_total counter\n");
+    out.append("http_connections_total ").append(connectionsTotal.sum()).append('\n');
+    out.append("# TYPE http_timeouts_total counter\n");
+    out.append("http_timeouts_total{phase=\"header\"} ").append(headerTimeouts.sum()).append('\n');
+    out.append("http_timeouts_total{phase=\"request\"} ").append(requestTimeouts.sum()).append('\n');
+    out.append("# TYPE log_dropped_lines_total counter\n");
+    out.append("log_dropped_lines_total ").append(AsyncLog.dropped()).append('\n');
+
+    out.append("# TYPE http_phase_seconds summary\n");
+    summary(out, "http_phase_seconds", "phase", "parse", parse);
+    summary(out, "http_phase_seconds", "phase", "handle", handle);
+    summary(out, "http_phase_seconds", "phase", "write", write);
+    summary(out, "http_phase_seconds", "phase", "first_byte", firstByte);
+    out.append("# TYPE http_route_seconds summary\n");
+    for (Map.Entry<String, LatencyHistogram> route : sortedRoutes().entrySet()) {
+      summary(out, "http_route_seconds", "route", route.getKey(), route.getValue());
+    }
+    return out.toString();
+  }
+
+  private static void summary(StringBuilder out, String name, String label, String value, LatencyHistogram histogram) {
+    String labels = label + "=\"" + value + "\"";
+    for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+      out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+          .append(seconds(histogram.percentile(quantile * 100))).append('\n');
+    }
+    out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.sum())).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(histogram.count()).append('\n');
+  }
+
+  /**
+   * The same values as JSON, latencies in seconds
+   * @return a JSON object
+   */
+  String json() {
+    StringBuilder out = new StringBuilder(4096);
+    out.append("{\"routes\":{");
+    boolean first = true;
+    for (Map.Entry<String, LatencyHistogram> route : sortedRoutes().entrySet()) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append('"').append(route.getKey()).append("\":");
+      json(out, route.getValue());
+    }
+    out.append("},\"statuses\":{");
+    first = true;
+    for (int status = 0; status < statuses.length(); status++) {
+      long count = statuses.get(status);
+      if (count > 0) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        out.append('"').append(status).append("\":").append(count);
+      }
+    }
+    out.append("},\"bytesReceived\":").append(bytesIn.sum());
+    out.append(",\"bytesSent\":").append(bytesOut.sum());
+    out.append(",\"connectionsOpen\":").append(connectionsOpen.get());
+    out.append(",\"connectionsTotal\":").append(connectionsTotal.sum());
+    out.append(",\"timeouts\":{\"header\":").append(headerTimeouts.sum())
+        .append(",\"request\":").append(requestTimeouts.sum()).append('}');
+    out.append(",\"logDropped\":").append(AsyncLog.dropped());
+    out.append(",\"phases\":{\"parse\":");
+    json(out, parse);
+    out.append(",\"handle\":");
+    json(out, handle);
+    out.append(",\"write\":");
+    json(out, write);
+    out.append(",\"firstByte\":");
+    json(out, firstByte);
+    out.append("}}");
+    return out.toString();
+  }
+
+  private static void json(StringBuilder out, LatencyHistogram histogram) {
+    out.append("{\"count\":").append(histogram.count())
+        .append(",\"mean\":").append(seconds((long) histogram.mean()))
+        .append(",\"p50\":").append(seconds(histogram.percentile(50)))
+        .append(",\"p90\":").append(seconds(histogram.percentile(90)))
+        .append(",\"p99\":").append(seconds(histogram.percentile(99)))
+        .append(",\"p999\":").append(seconds(histogram.percentile(99.9)))
+        .append(",\"max\":").append(seconds(histogram.max())).append('}');
+  }
+
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private Map<String, LatencyHistogram> sortedRoutes() {
+    return new TreeMap<>(routes);
+  }
+}
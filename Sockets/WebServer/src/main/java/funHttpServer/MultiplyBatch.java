@@ -0,0 +1,305 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Multiplies the pairs of numbers in a request body (POST /multiply) while
+ * the body arrives, so a batch of millions of pairs costs one round trip and
+ * no more memory than a few buffers. Two formats, picked by Content-Type:
+ *
+ *   text/plain (default)  one pair per line, separated by spaces, tabs, a
+ *                         comma or "*", e.g. "3 4". Answered with one
+ *                         product per line. Numbers of any size.
+ *   application/octet-stream
+ *                         pairs of big-endian signed 64 bit integers, 16
+ *                         bytes per pair. Answered with each product as a
+ *                         big-endian signed 128 bit integer, 16 bytes.
+ *
+ * Numbers that fit a long are parsed and multiplied as primitives, with
+ * Math.multiplyHigh telling whether the product still fits; only products
+ * (or numbers) that do not fit go through BigInteger.
+ *
+ * The products are written to a temp file through one buffer as they are
+ * computed and streamed back from there once the body is complete, the
+ * connection only answers after the whole request arrived. The file is
+ * deleted when the response is closed. The response carries the count and
+ * the rate in X-Products and X-Products-Per-Second.
+ */
+class MultiplyBatch implements BodySink {
+  /** longest number accepted in the text format, in characters */
+  private static final int MAX_NUMBER = 4096;
+
+  private final boolean binary;
+  private final long maxBytes;
+  private final FileChannel spool;
+  private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+  // sign and digits of a long, see writeLong
+  private final byte[] digits = new byte[20];
+  private final CompletableFuture<Response> response = new CompletableFuture<>();
+  private final long started = System.nanoTime();
+  private long received = 0;
+  private long products = 0;
+
+  // binary: the bytes of a pair that was cut off at the end of a buffer
+  private final ByteBuffer pair = ByteBuffer.allocate(16);
+
+  // text: the number being read and the first number of the line
+  private final byte[] token = new byte[MAX_NUMBER];
+  private int tokenLength = 0;
+  private int numbers = 0;
+  private long first;
+  private BigInteger bigFirst;
+  private long line = 1;
+
+  private MultiplyBatch(boolean binary, long maxBytes, FileChannel spool) {
+    this.binary = binary;
+    this.maxBytes = maxBytes;
+    this.spool = spool;
+  }
+
+  /**
+   * Starts a batch, before any of the body is read
+   * @param contentType Content-Type of the request, null for text
+   * @param length Content-Length of the request, 0 if it is chunked
+   * @param maxBytes largest body accepted
+   * @return the sink to stream the pairs to
+   * @throws HttpParser.BadRequestException 413 if the Content-Length is larger than maxBytes
+   */
+  static MultiplyBatch open(String contentType, long length, long maxBytes) throws IOException {
+    if (length > maxBytes) {
+      throw new HttpParser.BadRequestException(413, "Payload Too Large",
+          "Batches can be at most " + maxBytes + " bytes");
+    }
+    boolean binary = contentType != null && contentType.toLowerCase().startsWith("application/octet-stream");
+    FileChannel spool = FileChannel.open(Files.createTempFile("multiply-", ".out"), StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    return new MultiplyBatch(binary, maxBytes, spool);
+  }
+
+  /**
+   * @return a times b in decimal, exact for all longs
+   */
+  static String multiply(long a, long b) {
+    long high = Math.multiplyHigh(a, b);
+    long low = a * b;
+    if (high == (low >> 63)) {
+      return Long.toString(low);
+    }
+    return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).toString();
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    received += data.remaining();
+    if (received > maxBytes) {
+      throw new HttpParser.BadRequestException(413, "Payload Too Large",
+          "Batches can be at most " + maxBytes + " bytes");
+    }
+    if (binary) {
+      writeBinary(data);
+    } else {
+      writeText(data);
+    }
+  }
+
+  private void writeBinary(ByteBuffer data) throws IOException {
+    if (pair.position() > 0) {
+      // finish the pair that was cut off
+      while (pair.hasRemaining() && data.hasRemaining()) {
+        pair.put(data.get());
+      }
+      if (pair.hasRemaining()) {
+        return;
+      }
+      pair.flip();
+      multiplyBinary(pair.getLong(), pair.getLong());
+      pair.clear();
+    }
+    while (data.remaining() >= 16) {
+      multiplyBinary(data.getLong(), data.getLong());
+    }
+    pair.put(data);
+  }
+
+  private void multiplyBinary(long a, long b) throws IOException {
+    if (out.remaining() < 16) {
+      flush();
+    }
+    // 128 bits always hold the product of two longs
+    out.putLong(Math.multiplyHigh(a, b)).putLong(a * b);
+    products++;
+  }
+
+  private void writeText(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      byte b = data.get();
+      if (b == '\n') {
+        endNumber();
+        endLine();
+      } else if (b == ' ' || b == '\t' || b == ',' || b == '*' || b == '\r') {
+        endNumber();
+      } else if ((b >= '0' && b <= '9') || ((b == '-' || b == '+') && tokenLength == 0)) {
+        if (tokenLength == MAX_NUMBER) {
+          throw badLine("number longer than " + MAX_NUMBER + " digits");
+        }
+        token[tokenLength++] = b;
+      } else {
+        throw badLine("unexpected character '" + (char) (b & 0xff) + "'");
+      }
+    }
+  }
+
+  /**
+   * The number in token is complete, remembers it as the first of the line
+   * or multiplies it with the first
+   */
+  private void endNumber() throws IOException {
+    if (tokenLength == 0) {
+      return;
+    }
+    if (numbers == 2) {
+      throw badLine("more than two numbers");
+    }
+    int start = token[0] == '-' || token[0] == '+' ? 1 : 0;
+    if (start == tokenLength) {
+      throw badLine("sign without digits");
+    }
+    boolean fits = tokenLength - start <= 18; // 18 digits always fit a long
+    long value = 0;
+    BigInteger big = null;
+    if (fits) {
+      for (int i = start; i < tokenLength; i++) {
+        value = value * 10 + (token[i] - '0');
+      }
+      if (token[0] == '-') {
+        value = -value;
+      }
+    } else {
+      big = new BigInteger(new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1));
+    }
+    tokenLength = 0;
+    if (numbers++ == 0) {
+      first = value;
+      bigFirst = big;
+      return;
+    }
+    if (bigFirst == null && big == null) {
+      long high = Math.multiplyHigh(first, value);
+      long low = first * value;
+      if (high == (low >> 63)) {
+        writeLong(low);
+      } else {
+        writeBig(BigInteger.valueOf(first).multiply(BigInteger.valueOf(value)));
+      }
+    } else {
+      BigInteger a = bigFirst != null ? bigFirst : BigInteger.valueOf(first);
+      BigInteger b = big != null ? big : BigInteger.valueOf(value);
+      writeBig(a.multiply(b));
+    }
+    products++;
+  }
+
+  private void endLine() throws HttpParser.BadRequestException {
+    if (numbers == 1) {
+      throw badLine("only one number");
+    }
+    numbers = 0;
+    bigFirst = null;
+    line++;
+  }
+
+  /**
+   * Writes a long in decimal and a line break, without making a String
+   */
+  private void writeLong(long value) throws IOException {
+    if (out.remaining() < digits.length + 1) {
+      flush();
+    }
+    // digits from the back, counted negative so Long.MIN_VALUE works too
+    long rest = value < 0 ? value : -value;
+    int start = digits.length;
+    do {
+      digits[--start] = (byte) ('0' - rest % 10);
+      rest /= 10;
+    } while (rest != 0);
+    if (value < 0) {
+      digits[--start] = '-';
+    }
+    out.put(digits, start, digits.length - start).put((byte) '\n');
+  }
+
+  private void writeBig(BigInteger value) throws IOException {
+    byte[] digits = (value.toString() + "\n").getBytes(StandardCharsets.ISO_8859_1);
+    if (out.remaining() < digits.length) {
+      flush();
+    }
+    if (digits.length > out.capacity()) {
+      spool.write(ByteBuffer.wrap(digits));
+      return;
+    }
+    out.put(digits);
+  }
+
+  private void flush() throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      spool.write(out);
+    }
+    out.clear();
+  }
+
+  private HttpParser.BadRequestException badLine(String problem) {
+    return new HttpParser.BadRequestException(400, "Bad Request", "Line " + line + ": " + problem);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    try {
+      if (binary) {
+        if (pair.position() > 0) {
+          throw new HttpParser.BadRequestException(400, "Bad Request",
+              "Body is not a whole number of 16 byte pairs");
+        }
+      } else {
+        // the last line does not need a line break
+        endNumber();
+        endLine();
+      }
+      flush();
+      spool.position(0);
+    } catch (IOException e) {
+      abort(e);
+      throw e;
+    }
+    long nanos = Math.max(1, System.nanoTime() - started);
+    long perSecond = (long) (products * 1e9 / nanos);
+    AsyncLog.info("Multiplied " + products + " pairs (" + received + " bytes) in " + nanos / 1_000_000
+        + " ms, " + perSecond + " products/s");
+    response.complete(Response.stream(200, "OK", binary ? "application/octet-stream" : "text/plain; charset=utf-8",
+        spool)
+        .header("X-Products", Long.toString(products))
+        .header("X-Products-Per-Second", Long.toString(perSecond)));
+  }
+
+  @Override
+  public void abort(Throwable reason) {
+    try {
+      spool.close();
+    } catch (IOException e) {
+      AsyncLog.warn("Cannot delete the multiply spool file: " + e.getMessage());
+    }
+    response.completeExceptionally(reason);
+  }
+
+  @Override
+  public CompletableFuture<Response> response() {
+    return response;
+  }
+}
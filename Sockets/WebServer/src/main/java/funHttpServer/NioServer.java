@@ -0,0 +1,595 @@
+package funHttpServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server core for the fun WebServer (-Phttp.mode=nio). Instead of
+ * one thread per connection, a few event loops each watch many connections
+ * with a Selector and only do work for the ones that can be read or written.
+ * An idle keep-alive connection then only costs its buffers, not a thread.
+ *
+ * The calling thread accepts connections and hands them round robin to the
+ * event loops. With several acceptors (-Phttp.acceptors) every listening
+ * socket is watched by an event loop instead, which accepts its connections
+ * itself and keeps them, so no thread hands connections to another. The
+ * requests themselves are answered by the same routes as in the blocking
+ * server (WebServer.createResponse), on the event loop thread. A route that
+ * waits for another server (like /github) returns a future; its connection
+ * keeps the place of the response in its queue and the loop goes on with
+ * other connections until the future hands the response back.
+ */
+class NioServer {
+  private final WebServer server;
+  private final ServerConfig config;
+  private final EventLoop[] loops;
+
+  /**
+   * @param server provides the routes and the latency histogram
+   * @param config server configuration
+   * @throws IOException if a selector cannot be opened
+   */
+  NioServer(WebServer server, ServerConfig config) throws IOException {
+    this.server = server;
+    this.config = config;
+    this.loops = new EventLoop[Math.max(1, config.eventLoops)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  /**
+   * Starts the event loops and accepts connections forever
+   * @param port to listen on
+   * @throws IOException when the listening socket fails
+   */
+  void run(int port) throws IOException {
+    ServerSocketChannel[] listeners = WebServer.listen(port, config);
+    System.out.println("Listening on port " + port + " with " + loops.length + " event loops and "
+        + listeners.length + " acceptors (" + config + ")");
+    if (listeners.length > 1) {
+      for (int i = 0; i < listeners.length; i++) {
+        loops[i % loops.length].listen(listeners[i]);
+      }
+    }
+    Thread[] threads = new Thread[loops.length];
+    for (int i = 0; i < loops.length; i++) {
+      threads[i] = new Thread(loops[i], "event-loop-" + i);
+      threads[i].start();
+    }
+    if (listeners.length > 1) {
+      // the event loops accept, nothing left to do here
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      return;
+    }
+
+    try (ServerSocketChannel listener = listeners[0]) {
+      int next = 0;
+      while (true) {
+        // blocking accept, the event loops only deal with accepted connections
+        SocketChannel channel = listener.accept();
+        long acceptedAt = System.nanoTime();
+        if (!server.admit()) {
+          server.rejectConnection(channel.socket());
+          continue;
+        }
+        loops[next].add(channel, acceptedAt);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+
+  /**
+   * One selector and the thread running it. Connections are only touched by
+   * their loop's thread, so they need no locking.
+   */
+  private class EventLoop implements Runnable {
+    private final Selector selector;
+    // connections accepted by the main thread, waiting to be registered
+    private final Queue<Connection> added = new ConcurrentLinkedQueue<>();
+    // work handed to this loop by other threads, e.g. finished async responses
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Called from the accepting thread
+     */
+    void add(SocketChannel channel, long acceptedAt) {
+      added.add(new Connection(this, channel, acceptedAt));
+      selector.wakeup();
+    }
+
+    /**
+     * Makes this loop accept the connections of a listening socket, called
+     * before the loop runs
+     */
+    void listen(ServerSocketChannel listener) throws IOException {
+      listener.configureBlocking(false);
+      listener.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Accepts the connections waiting on a listening socket, they stay on this loop
+     */
+    private void accept(ServerSocketChannel listener) {
+      try {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+          long acceptedAt = System.nanoTime();
+          if (!server.admit()) {
+            server.rejectConnection(channel.socket());
+            continue;
+          }
+          new Connection(this, channel, acceptedAt).register(selector);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    /**
+     * Runs the task on this loop's thread, can be called from any thread
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long lastIdleCheck = System.currentTimeMillis();
+      while (true) {
+        try {
+          selector.select(1000);
+        } catch (IOException e) {
+          e.printStackTrace();
+          return;
+        }
+
+        Connection connection;
+        while ((connection = added.poll()) != null) {
+          connection.register(selector);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid() && key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+            continue;
+          }
+          connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (IOException e) {
+            // client went away while we were talking to it
+            connection.close();
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck >= 1000) {
+          closeExpired(now);
+          lastIdleCheck = now;
+        }
+      }
+    }
+
+    /**
+     * Closes connections that were idle for too long, and those that are too
+     * slow: sending a request head or reading a response
+     */
+    private void closeExpired(long now) {
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (connection == null) {
+          continue;
+        }
+        if (connection.body != null) {
+          // a large body may take long to arrive, but must not stall
+          if (now - connection.lastActive > config.idleTimeoutMillis) {
+            server.metrics.timedOut("request");
+            connection.abort();
+          }
+        } else if (!connection.out.isEmpty() && !connection.out.peek().waitingForSource()
+            && now - connection.out.peek().activeAt > config.requestTimeoutMillis) {
+          server.metrics.timedOut("request");
+          connection.abort();
+        } else if (connection.headStartedAt != 0 && now - connection.headStartedAt > config.headerTimeoutMillis) {
+          server.metrics.timedOut("header");
+          connection.timeOutHead();
+        } else if (connection.out.isEmpty() && now - connection.lastActive > config.idleTimeoutMillis) {
+          // a connection with a response to write or wait for is not idle, the request timeout covers it
+          connection.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * State of one client connection: what was read but not parsed yet and the
+   * responses that still have to be written.
+   */
+  private class Connection {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final long acceptedAt;
+    private final ByteBuffer in = server.buffers.acquire();
+    private final HttpParser parser = new HttpParser(config.maxHeaderBytes, config.maxHeaders);
+    private final Request request = new Request(config.maxHeaders);
+    private final ArrayDeque<Pending> out = new ArrayDeque<>();
+    private SelectionKey key;
+    private long lastActive = System.currentTimeMillis();
+    private int served = 0;
+    private boolean closeAfterWrite = false;
+    private boolean firstByteWritten = false;
+    // responses of async routes that are not done yet
+    private int awaiting = 0;
+    // System.currentTimeMillis() when the first byte of an incomplete request head arrived, 0 if there is none
+    private long headStartedAt = 0;
+    // body of the last request that is still being read, and the place of its response
+    private RequestBody body;
+    private Pending bodyResponse;
+
+    Connection(EventLoop loop, SocketChannel channel, long acceptedAt) {
+      this.loop = loop;
+      this.channel = channel;
+      this.acceptedAt = acceptedAt;
+      server.metrics.connectionOpened();
+    }
+
+    void register(Selector selector) {
+      try {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        e.printStackTrace();
+        close();
+      }
+    }
+
+    void onReadable() throws IOException {
+      int read = channel.read(in);
+      if (read < 0) {
+        close(); // client closed the connection
+        return;
+      }
+      server.metrics.received(read);
+      lastActive = System.currentTimeMillis();
+      handleRequests();
+      if (in.position() == 0 || closeAfterWrite || body != null) {
+        headStartedAt = 0; // no partial head, or none we are going to parse
+      } else if (headStartedAt == 0) {
+        headStartedAt = lastActive; // the rest of this head has to come within the header timeout
+      }
+      onWritable();
+    }
+
+    /**
+     * Answers a request head that did not arrive in time with a 408 and
+     * closes the connection once that is written
+     */
+    void timeOutHead() {
+      headStartedAt = 0;
+      queue(Response.html(408, "Request Timeout", "The request head took too long"), false);
+      server.metrics.rejected(408);
+      closeAfterWrite = true;
+      try {
+        onWritable();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /**
+     * Answers every complete request in the read buffer. A client may pipeline
+     * several requests, they are answered in order. The body of a request
+     * whose route takes one is handed to it before the next head is parsed.
+     */
+    private void handleRequests() {
+      in.flip();
+      try {
+        while (true) {
+          if (body != null) {
+            if (!body.readFrom(in)) {
+              break; // the rest of the body is not here yet
+            }
+            body.finish();
+            body = null;
+            bodyResponse.activeAt = System.currentTimeMillis(); // the response is due from now on
+            bodyResponse = null;
+            continue;
+          }
+          if (closeAfterWrite || !parser.parse(in, request)) {
+            break;
+          }
+          server.metrics.parse.record(parser.lastParseNanos());
+          AsyncLog.info("Received: " + request.requestLine());
+          served++;
+          boolean keepAlive = request.keepAlive() && served < config.maxRequestsPerConnection;
+          boolean expectsContinue = request.isHttp11() && request.headerEquals("Expect", "100-continue");
+          Router.Params params = new Router.Params(request);
+          CompletableFuture<Response> response = server.createResponse(request, params);
+          if (params.body() == null && request.hasBody()) {
+            // other request bodies are not read, so do not mistake one for the next request
+            keepAlive = false;
+          }
+          Pending pending;
+          if (response.isDone()) {
+            pending = queue(response.join(), keepAlive);
+          } else {
+            pending = queueLater(response, keepAlive);
+          }
+          closeAfterWrite = !keepAlive;
+          if (params.body() != null) {
+            // the route takes the body, its response is ready once it is read
+            body = params.body();
+            bodyResponse = pending;
+            if (expectsContinue && !in.hasRemaining() && out.size() == 1) {
+              // so short that the empty socket buffer always takes all of it
+              channel.write(ByteBuffer.wrap(Response.CONTINUE));
+            }
+          }
+        }
+      } catch (HttpParser.BadRequestException e) {
+        if (body != null) {
+          // answered with e.status in place of the body's response, the rest of the body is not read
+          body.abort(e);
+          body = null;
+          bodyResponse.keepAlive = false;
+          bodyResponse = null;
+        } else {
+          queue(Response.html(e.status, e.reason, "<html>" + e.getMessage() + "</html>"), false);
+        }
+        server.metrics.rejected(e.status);
+        closeAfterWrite = true;
+      } catch (IOException e) {
+        // storing the body failed, answered with a 500 in place of its response
+        body.abort(e);
+        body = null;
+        bodyResponse.keepAlive = false;
+        bodyResponse = null;
+        closeAfterWrite = true;
+      }
+      in.compact();
+    }
+
+    private Pending queue(Response response, boolean keepAlive) {
+      Pending pending = new Pending(keepAlive);
+      pending.ready(response);
+      out.add(pending);
+      return pending;
+    }
+
+    /**
+     * Keeps the place of a response that is not done yet, so the responses
+     * of later pipelined requests are still written after it
+     */
+    private Pending queueLater(CompletableFuture<Response> response, boolean keepAlive) {
+      Pending pending = new Pending(keepAlive);
+      out.add(pending);
+      awaiting++;
+      // completes on some other thread, the connection may only be touched on its loop
+      response.thenAccept(done -> loop.execute(() -> {
+        awaiting--;
+        if (!channel.isOpen()) {
+          done.close(); // client gave up waiting
+          return;
+        }
+        pending.ready(done);
+        try {
+          onWritable();
+        } catch (IOException e) {
+          close();
+        }
+      }));
+      return pending;
+    }
+
+    /**
+     * Writes as much of the pending responses as the socket takes. Encoded
+     * heads and bodies of consecutive responses go out in one gathering
+     * write, a streamed body is transferred on its own once its head is written.
+     * While responses are pending we stop reading, so a client that does not
+     * read its responses cannot make us buffer without limit. Only the body
+     * of the request whose response is waiting for it is still read.
+     */
+    void onWritable() throws IOException {
+      while (!out.isEmpty()) {
+        long written;
+        Pending next = out.peek();
+        if (!next.ready()) {
+          break; // nothing can be written before this response is done
+        }
+        if (next.bytes.hasRemaining()) {
+          written = channel.write(pendingBytes());
+        } else {
+          written = next.response.transferBodyTo(channel);
+        }
+        while (!out.isEmpty() && out.peek().ready() && out.peek().done()) {
+          Pending done = out.poll();
+          Response response = done.response;
+          response.close();
+          server.metrics.write.record(System.nanoTime() - done.readyAt);
+          if (response.closesConnection()) {
+            close(); // the end of the connection is the end of the body
+            return;
+          }
+        }
+        server.metrics.sent(written);
+        if (written > 0 && !out.isEmpty()) {
+          // a slow download is fine as long as it keeps moving
+          out.peek().activeAt = System.currentTimeMillis();
+        }
+        if (written > 0 && !firstByteWritten) {
+          server.metrics.firstByte.record(System.nanoTime() - acceptedAt);
+          firstByteWritten = true;
+        }
+        if (written == 0) {
+          break; // socket buffer is full, wait until it can take more
+        }
+      }
+
+      if (out.isEmpty()) {
+        if (closeAfterWrite) {
+          close();
+        } else {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } else if (!out.peek().ready()) {
+        // wait for the async route, the task wakes us up
+        key.interestOps(body != null ? SelectionKey.OP_READ : 0);
+      } else if (out.peek().waitingForSource()) {
+        // a live body waits for its source, not for the client
+        Pending live = out.peek();
+        key.interestOps(0);
+        live.response.onBodyAvailable(() -> loop.execute(() -> {
+          if (!channel.isOpen() || out.peek() != live) {
+            return;
+          }
+          live.activeAt = System.currentTimeMillis(); // the client has to take this within the request timeout
+          try {
+            onWritable();
+          } catch (IOException e) {
+            close();
+          }
+        }));
+      } else {
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * @return the encoded bytes of the pending responses up to (and including)
+     *         the first one with a streamed body, which has to be sent before the
+     *         bytes of the responses after it, or up to the first one that is
+     *         not done yet
+     */
+    private ByteBuffer[] pendingBytes() {
+      ArrayList<ByteBuffer> buffers = new ArrayList<>();
+      for (Pending pending : out) {
+        if (!pending.ready()) {
+          break;
+        }
+        buffers.add(pending.bytes);
+        if (pending.response.isStreamed()) {
+          break;
+        }
+      }
+      return buffers.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Closes the connection with a reset, without sending what is still
+     * buffered for a client that does not read it
+     */
+    void abort() {
+      try {
+        channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+      } catch (IOException e) {
+        // closed normally then
+      }
+      close();
+    }
+
+    void close() {
+      if (key != null) {
+        key.cancel();
+      }
+      if (body != null) {
+        body.abort(new EOFException("Connection closed during the request body"));
+        body = null;
+      }
+      for (Pending pending : out) {
+        if (pending.ready()) {
+          pending.response.close();
+        }
+      }
+      out.clear();
+      if (channel.isOpen()) {
+        server.buffers.release(in);
+        server.metrics.connectionClosed();
+        server.release();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * A response waiting to be written: its encoded bytes and, if it has one,
+   * the streamed body that follows them. The response is null while an async
+   * route is still working on it.
+   */
+  private static class Pending {
+    // false once the body of the request turned out to be invalid
+    boolean keepAlive;
+    // System.currentTimeMillis() when the request was parsed (or its body read), or the last write of
+    // its response made progress, for the request timeout
+    long activeAt = System.currentTimeMillis();
+    Response response;
+    ByteBuffer bytes;
+    // System.nanoTime() when the response was done, for the write time
+    long readyAt;
+
+    Pending(boolean keepAlive) {
+      this.keepAlive = keepAlive;
+    }
+
+    void ready(Response response) {
+      this.response = response;
+      this.bytes = ByteBuffer.wrap(response.encode(keepAlive));
+      this.readyAt = System.nanoTime();
+    }
+
+    boolean ready() {
+      return response != null;
+    }
+
+    boolean done() {
+      return !bytes.hasRemaining() && response.bodyDone();
+    }
+
+    /**
+     * @return true if everything of a live body was written and it waits
+     *         for its source to produce more
+     */
+    boolean waitingForSource() {
+      return ready() && !bytes.hasRemaining() && response.bodyStalled();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One parsed HTTP request head. The request does not copy anything out of
+ * the connection's read buffer, it only keeps the offsets HttpParser found
+ * for the method, path, query, version and every header. Strings are only
+ * made when a route asks for them, and the compare methods work on the
+ * bytes directly.
+ *
+ * One Request object is reused for all requests on a connection, so it is
+ * only valid until the next request is parsed. Copy out what you need to
+ * keep (e.g. with path() or header()).
+ *
+ * The path is kept without the leading "/" since that is what the routes in
+ * WebServer compare against.
+ */
+class Request {
+  byte[] buf;
+  int methodStart, methodEnd;
+  int pathStart, pathEnd;
+  // -1 if there is no "?" in the request target
+  int queryStart = -1, queryEnd = -1;
+  int versionStart, versionEnd;
+  // four offsets per header: name start, name end, value start, value end
+  int[] headerOffsets;
+  int headerCount;
+  // first byte after the empty line that ends the head
+  int bodyStart;
+
+  Request(int maxHeaders) {
+    headerOffsets = new int[maxHeaders * 4];
+  }
+
+  /**
+   * @param method e.g. "GET"
+   * @return true if this request uses the method, without making a String
+   */
+  boolean isMethod(String method) {
+    return equalsAscii(methodStart, methodEnd, method, false);
+  }
+
+  String method() {
+    return string(methodStart, methodEnd);
+  }
+
+  /**
+   * @return the path without the leading "/" and without the query
+   */
+  String path() {
+    return new String(buf, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the query after the "?", or null if there is none
+   */
+  String query() {
+    return queryStart < 0 ? null : new String(buf, queryStart, queryEnd - queryStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return path and query as the client sent them, without the leading "/"
+   */
+  String target() {
+    int end = queryStart < 0 ? pathEnd : queryEnd;
+    return new String(buf, pathStart, end - pathStart, StandardCharsets.UTF_8);
+  }
+
+  String version() {
+    return string(versionStart, versionEnd);
+  }
+
+  /**
+   * @return the request line, e.g. "GET /json HTTP/1.1"
+   */
+  String requestLine() {
+    return string(methodStart, versionEnd);
+  }
+
+  /**
+   * @param name header name, any case
+   * @return the header value or null if the client did not send it
+   */
+  String header(String name) {
+    int index = indexOfHeader(name);
+    return index < 0 ? null : string(headerOffsets[index + 2], headerOffsets[index + 3]);
+  }
+
+  /**
+   * @param name header name, any case
+   * @param value value to compare with, any case
+   * @return true if the header was sent with this value, without making a String
+   */
+  boolean headerEquals(String name, String value) {
+    int index = indexOfHeader(name);
+    return index >= 0 && equalsAscii(headerOffsets[index + 2], headerOffsets[index + 3], value, true);
+  }
+
+  /**
+   * @return the Content-Length the client sent, 0 if none, -1 if it is not a number
+   */
+  long contentLength() {
+    int index = indexOfHeader("Content-Length");
+    if (index < 0) {
+      return 0;
+    }
+    int start = headerOffsets[index + 2];
+    int end = headerOffsets[index + 3];
+    if (start == end || end - start > 18) {
+      return -1;
+    }
+    long length = 0;
+    for (int i = start; i < end; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      length = length * 10 + digit;
+    }
+    return length;
+  }
+
+  /**
+   * @return true if a body follows the head
+   */
+  boolean hasBody() {
+    return contentLength() != 0 || indexOfHeader("Transfer-Encoding") >= 0;
+  }
+
+  /**
+   * @return true for HTTP/1.1 clients, they understand keep-alive by default
+   *         and chunked transfer encoding
+   */
+  boolean isHttp11() {
+    return equalsAscii(versionStart, versionEnd, "HTTP/1.1", false);
+  }
+
+  /**
+   * HTTP/1.1 keeps the connection open unless the client says "close",
+   * HTTP/1.0 closes it unless the client asks for "keep-alive"
+   * @return true if the client wants to send more requests on this connection
+   */
+  boolean keepAlive() {
+    if (isHttp11()) {
+      return !headerEquals("Connection", "close");
+    }
+    return headerEquals("Connection", "keep-alive");
+  }
+
+  private int indexOfHeader(String name) {
+    for (int i = 0; i < headerCount * 4; i += 4) {
+      if (equalsAscii(headerOffsets[i], headerOffsets[i + 1], name, true)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean equalsAscii(int start, int end, String value, boolean ignoreCase) {
+    if (end - start != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      int a = buf[start + i];
+      int b = value.charAt(i);
+      if (a != b && !(ignoreCase && (a | 0x20) == (b | 0x20) && (a | 0x20) >= 'a' && (a | 0x20) <= 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String string(int start, int end) {
+    return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  @Override
+  public String toString() {
+    return requestLine();
+  }
+}
@@ -0,0 +1,166 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a request while it is being read: finds the body in the bytes
+ * that follow the head (RFC 7230 3.3), with Content-Length or with chunked
+ * transfer encoding, and hands it to a BodySink without the chunk framing.
+ *
+ * Works on whatever part of the body is in the read buffer and remembers
+ * where it stopped, so the blocking server and the event loops both feed it
+ * as bytes come in.
+ */
+class RequestBody {
+  /** longest chunk size or trailer line accepted */
+  private static final int MAX_LINE = 1024;
+
+  private enum State { DATA, SIZE, DATA_END, TRAILER, DONE }
+
+  private final boolean chunked;
+  private BodySink sink;
+  private State state;
+  // bytes of the current chunk, or of the whole body without chunks, still to come
+  private long remaining;
+
+  /**
+   * @param request the parsed head
+   * @throws HttpParser.BadRequestException if the framing is invalid (400) or
+   *         not one we know (501)
+   */
+  RequestBody(Request request) throws HttpParser.BadRequestException {
+    String encoding = request.header("Transfer-Encoding");
+    if (encoding != null) {
+      // chunked has to be last and we do not know any other coding
+      if (!encoding.trim().equalsIgnoreCase("chunked")) {
+        throw new HttpParser.BadRequestException(501, "Not Implemented",
+            "Transfer-Encoding " + encoding + " is not supported");
+      }
+      chunked = true;
+      state = State.SIZE;
+    } else {
+      remaining = request.contentLength();
+      if (remaining < 0) {
+        throw new HttpParser.BadRequestException(400, "Bad Request", "Invalid Content-Length");
+      }
+      chunked = false;
+      state = remaining == 0 ? State.DONE : State.DATA;
+    }
+  }
+
+  /**
+   * @param sink where the body goes
+   */
+  void sendTo(BodySink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Takes the part of the body that is in the buffer
+   * @param in read buffer of the connection, in read mode. Its position is
+   *           moved past the bytes that were taken, which may leave an
+   *           incomplete chunk size line for the next call.
+   * @return true once the whole body was taken, the buffer position is then
+   *         at the next request
+   * @throws IOException if the sink fails, or a HttpParser.BadRequestException
+   *         if the chunk framing is invalid
+   */
+  boolean readFrom(ByteBuffer in) throws IOException {
+    while (true) {
+      switch (state) {
+        case DATA:
+          if (remaining == 0) {
+            state = chunked ? State.DATA_END : State.DONE;
+            break;
+          }
+          if (!in.hasRemaining()) {
+            return false;
+          }
+          int length = (int) Math.min(remaining, in.remaining());
+          ByteBuffer data = in.duplicate();
+          data.limit(in.position() + length);
+          sink.write(data);
+          in.position(in.position() + length);
+          remaining -= length;
+          break;
+        case SIZE: {
+          String line = readLine(in);
+          if (line == null) {
+            return false;
+          }
+          int extension = line.indexOf(';');
+          String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+          try {
+            remaining = Long.parseLong(size, 16);
+          } catch (NumberFormatException e) {
+            throw new HttpParser.BadRequestException(400, "Bad Request", "Invalid chunk size: " + size);
+          }
+          if (remaining < 0) {
+            throw new HttpParser.BadRequestException(400, "Bad Request", "Invalid chunk size: " + size);
+          }
+          state = remaining == 0 ? State.TRAILER : State.DATA;
+          break;
+        }
+        case DATA_END: {
+          String line = readLine(in);
+          if (line == null) {
+            return false;
+          }
+          if (!line.isEmpty()) {
+            throw new HttpParser.BadRequestException(400, "Bad Request", "Chunk longer than its size");
+          }
+          state = State.SIZE;
+          break;
+        }
+        case TRAILER: {
+          // trailer fields are not used, they end with an empty line
+          String line = readLine(in);
+          if (line == null) {
+            return false;
+          }
+          if (line.isEmpty()) {
+            state = State.DONE;
+          }
+          break;
+        }
+        case DONE:
+          return true;
+      }
+    }
+  }
+
+  /**
+   * The whole body was taken, see BodySink.finish
+   */
+  void finish() throws IOException {
+    sink.finish();
+  }
+
+  /**
+   * The body will never be complete, see BodySink.abort
+   */
+  void abort(Throwable reason) {
+    sink.abort(reason);
+  }
+
+  /**
+   * @return the next line without its line break, null if it is not complete yet
+   */
+  private static String readLine(ByteBuffer in) throws HttpParser.BadRequestException {
+    for (int i = in.position(); i < in.limit(); i++) {
+      if (in.get(i) == '\n') {
+        int end = i > in.position() && in.get(i - 1) == '\r' ? i - 1 : i;
+        String line = new String(in.array(), in.arrayOffset() + in.position(), end - in.position(),
+            StandardCharsets.ISO_8859_1);
+        in.position(i + 1);
+        return line;
+      }
+    }
+    if (in.remaining() > MAX_LINE) {
+      throw new HttpParser.BadRequestException(400, "Bad Request", "Chunk line longer than " + MAX_LINE + " bytes");
+    }
+    return null;
+  }
+}
@@ -0,0 +1,630 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An HTTP response before it is written to the socket. Keeping status,
+ * headers and body apart lets the connection add the framing headers
+ * (Content-Length or Transfer-Encoding, Connection) that depend on the
+ * connection, not the route.
+ *
+ * The body is a byte array or it is streamed after the head:
+ *   - parts of a file (the whole file, or the ranges a client asked for).
+ *     A file is never read into memory, it is copied from the file straight
+ *     to the socket by the operating system (FileChannel.transferTo, sendfile
+ *     on Linux).
+ *   - a channel that produces the body while it is sent, e.g. a generated
+ *     report. Its length is not known up front, so it is sent with chunked
+ *     transfer encoding through one fixed size buffer.
+ *   - a LiveSource, a channel whose data comes over time (e.g. the events of
+ *     an EventStream), sent the same way whenever it has something.
+ */
+class Response {
+
+  /**
+   * A body source that produces its data over time instead of as fast as it
+   * is read. A read returns 0 while there is nothing to send, then the
+   * connection waits until there is (see bodyStalled).
+   */
+  interface LiveSource extends ReadableByteChannel {
+    /**
+     * Blocks until there is something to read or the source was closed, for
+     * the blocking modes
+     */
+    void await() throws InterruptedIOException;
+
+    /**
+     * Calls the listener once, on whatever thread the data comes from, as
+     * soon as there is something to read (right away if there is), for the
+     * event loops
+     */
+    void onAvailable(Runnable listener);
+  }
+
+  /** content types for the file endings we serve, everything else is binary */
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>() {
+    {
+      put("html", "text/html; charset=utf-8");
+      put("htm", "text/html; charset=utf-8");
+      put("txt", "text/plain; charset=utf-8");
+      put("css", "text/css; charset=utf-8");
+      put("js", "text/javascript; charset=utf-8");
+      put("json", "application/json; charset=utf-8");
+      put("xml", "application/xml; charset=utf-8");
+      put("png", "image/png");
+      put("jpg", "image/jpeg");
+      put("jpeg", "image/jpeg");
+      put("gif", "image/gif");
+      put("svg", "image/svg+xml");
+      put("ico", "image/x-icon");
+      put("pdf", "application/pdf");
+      put("zip", "application/zip");
+    }
+  };
+
+  /** Last-Modified, If-Modified-Since and If-Range dates, e.g. "Tue, 15 Nov 1994 08:12:31 GMT" */
+  static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+  /** interim response telling a client that sent Expect: 100-continue to send its body */
+  static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  /** data bytes per chunk of a streamed body */
+  private static final int CHUNK_SIZE = 8192;
+  // room in front of the chunk data for its size line, e.g. "2000\r\n"
+  private static final int CHUNK_HEAD_ROOM = 10;
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+  /**
+   * most bytes one transferBodyTo call sends, so that a blocking transfer
+   * returns regularly and the caller sees whether it still makes progress
+   */
+  static final int MAX_TRANSFER = 64 * 1024;
+
+  final int status;
+  final String reason;
+  final Map<String, String> headers = new LinkedHashMap<>();
+  final byte[] body;
+
+  // file body, null if there is none
+  private final FileChannel file;
+  // what is sent after the head for a file body: file regions, for
+  // multipart/byteranges with the part headers in between
+  private final Segment[] segments;
+  private int segment = 0;
+  private final long streamedLength;
+
+  // body produced while sending, null if there is none
+  private final ReadableByteChannel source;
+  // false for HTTP/1.0 clients, then the body ends when the connection is closed
+  private boolean chunked = true;
+  private ByteBuffer chunk;
+  private boolean sourceDone = false;
+  private boolean streamDone = false;
+
+  // body length before Compression compressed it, -1 if it is not compressed
+  int uncompressedLength = -1;
+
+  // encoded once for responses that are sent many times, see freeze()
+  private byte[] keepAliveBytes;
+  private byte[] closeBytes;
+
+  Response(int status, String reason, String contentType, byte[] body) {
+    this(status, reason, contentType, body, null, null, null);
+  }
+
+  private Response(int status, String reason, String contentType, byte[] body, FileChannel file,
+      Segment[] segments, ReadableByteChannel source) {
+    this.status = status;
+    this.reason = reason;
+    this.body = body;
+    this.file = file;
+    this.segments = segments;
+    this.source = source;
+    long length = 0;
+    if (segments != null) {
+      for (Segment part : segments) {
+        length += part.length;
+      }
+    }
+    this.streamedLength = length;
+    headers.put("Content-Type", contentType);
+  }
+
+  /**
+   * Opens a file to be sent as the body. The file stays open until the
+   * response was written and {@link #close()} is called.
+   * @param path file to send
+   * @return a 200 response with the content type guessed from the file ending
+   * @throws IOException if the file cannot be opened
+   */
+  static Response file(Path path) throws IOException {
+    return file(path, null, null);
+  }
+
+  /**
+   * Opens a file to be sent as the body, or the parts of it the client asked
+   * for. The file stays open until the response was written and
+   * {@link #close()} is called.
+   * @param path file to send
+   * @param range Range header of the request, null if there is none
+   * @param ifRange If-Range header of the request, null if there is none.
+   *                The range is only sent if it is the file's ETag or the
+   *                file was not modified since this date, otherwise the
+   *                whole (changed) file is sent.
+   * @return 200 with the whole file, 206 with one range, 206 with a
+   *         multipart/byteranges body for several ranges, or 416 if none of
+   *         the ranges is in the file
+   * @throws IOException if the file cannot be opened
+   */
+  static Response file(Path path, String range, String ifRange) throws IOException {
+    String type = contentTypeOf(path);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    long size = channel.size();
+    Instant modified = Files.getLastModifiedTime(path).toInstant();
+    String lastModified = HTTP_DATE.format(modified);
+    // changes when the file is written or replaced, without reading it
+    String etag = "\"" + Long.toHexString(modified.toEpochMilli()) + "-" + Long.toHexString(size) + "\"";
+
+    long[] ranges = null;
+    if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+      ranges = ByteRanges.parse(range, size);
+    }
+
+    Response response;
+    if (ranges == null) {
+      response = new Response(200, "OK", type, new byte[0], channel,
+          new Segment[] { new Segment(0, size) }, null);
+    } else if (ranges.length == 0) {
+      channel.close();
+      return html(416, "Range Not Satisfiable", "Requested range not in file of " + size + " bytes")
+          .header("Content-Range", "bytes */" + size);
+    } else if (ranges.length == 2) {
+      response = new Response(206, "Partial Content", type, new byte[0], channel,
+          new Segment[] { new Segment(ranges[0], ranges[1] - ranges[0] + 1) }, null);
+      response.header("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + size);
+    } else {
+      // every range gets its own little head, separated by the boundary
+      String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      List<Segment> parts = new ArrayList<>();
+      for (int i = 0; i < ranges.length; i += 2) {
+        parts.add(new Segment(("\r\n--" + boundary + "\r\nContent-Type: " + type + "\r\nContent-Range: bytes "
+            + ranges[i] + "-" + ranges[i + 1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        parts.add(new Segment(ranges[i], ranges[i + 1] - ranges[i] + 1));
+      }
+      parts.add(new Segment(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+      response = new Response(206, "Partial Content", "multipart/byteranges; boundary=" + boundary,
+          new byte[0], channel, parts.toArray(new Segment[0]), null);
+    }
+    return response.header("Accept-Ranges", "bytes").header("ETag", etag).header("Last-Modified", lastModified);
+  }
+
+  /**
+   * The answer to a conditional GET when the client's copy is still current
+   * @param current the response that would have been sent, its validators
+   *                (ETag, Last-Modified) and Vary are sent again
+   * @return a 304 without a body
+   */
+  static Response notModified(Response current) {
+    Response response = new Response(304, "Not Modified", null, new byte[0]);
+    response.headers.remove("Content-Type");
+    for (String name : new String[] { "ETag", "Last-Modified", "Vary", "Cache-Control" }) {
+      String value = current.headers.get(name);
+      if (value != null) {
+        response.headers.put(name, value);
+      }
+    }
+    return response;
+  }
+
+  /**
+   * A strong ETag for a byte body: the first 128 bits of its SHA-256, so the
+   * same bytes always get the same tag, also after a restart
+   * @param body exactly the bytes that are sent, compressed ones get their own tag
+   * @return the quoted tag
+   */
+  static String etagOf(byte[] body) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+      StringBuilder tag = new StringBuilder(34).append('"');
+      for (int i = 0; i < 16; i++) {
+        tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      return tag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JVM has SHA-256", e);
+    }
+  }
+
+  /**
+   * Checks the validators of a conditional GET (RFC 7232) against this
+   * response. If-None-Match is used when both are sent, it is exact while
+   * dates only have whole seconds.
+   * @param ifNoneMatch If-None-Match header of the request, null if there is none
+   * @param ifModifiedSince If-Modified-Since header of the request, null if there is none
+   * @return true if the client's copy is still current, so a 304 can be sent instead
+   */
+  boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+    String etag = headers.get("ETag");
+    if (ifNoneMatch != null) {
+      if (etag == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        // weak comparison, a GET only needs the same content
+        if (tag.equals("*") || stripWeak(tag).equals(stripWeak(etag))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String lastModified = headers.get("Last-Modified");
+    if (ifModifiedSince != null && lastModified != null) {
+      try {
+        Instant since = Instant.from(HTTP_DATE.parse(ifModifiedSince));
+        return !Instant.from(HTTP_DATE.parse(lastModified)).isAfter(since);
+      } catch (DateTimeParseException e) {
+        return false; // not a valid date, the header is ignored
+      }
+    }
+    return false;
+  }
+
+  private static String stripWeak(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  /**
+   * A body that is produced while it is sent, with chunked transfer
+   * encoding. Only one chunk is held in memory at a time.
+   * @param status status code, e.g. 200
+   * @param reason reason phrase, e.g. "OK"
+   * @param contentType type of the produced body
+   * @param source produces the body, read until it returns -1 and closed
+   *               afterwards. A read has to return at least one byte or -1.
+   * @return the streamed response
+   */
+  static Response stream(int status, String reason, String contentType, ReadableByteChannel source) {
+    return new Response(status, reason, contentType, new byte[0], null, null, source);
+  }
+
+  /**
+   * A body that is sent while its source produces it, for as long as the
+   * client stays connected, e.g. Server-Sent Events
+   * @param contentType type of the body, e.g. text/event-stream
+   * @param source produces the body over time, closed with the response
+   * @return the streamed 200 response, not to be cached by anybody
+   */
+  static Response live(String contentType, LiveSource source) {
+    return stream(200, "OK", contentType, source).header("Cache-Control", "no-cache");
+  }
+
+  /**
+   * @param path file name to look at
+   * @return content type for the file ending, application/octet-stream if unknown
+   */
+  static String contentTypeOf(Path path) {
+    String name = path.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+    if (type == null) {
+      try {
+        type = Files.probeContentType(path);
+      } catch (IOException e) {
+        // fall through to binary
+      }
+    }
+    return type == null ? "application/octet-stream" : type;
+  }
+
+  /**
+   * @param status status code, e.g. 200
+   * @param reason reason phrase, e.g. "OK"
+   * @param html body, sent as UTF-8
+   * @return a text/html response
+   */
+  static Response html(int status, String reason, String html) {
+    return new Response(status, reason, "text/html; charset=utf-8", html.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param json body, sent as UTF-8
+   * @return a 200 application/json response
+   */
+  static Response json(String json) {
+    return new Response(200, "OK", "application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  Response header(String name, String value) {
+    if (keepAliveBytes != null) {
+      throw new IllegalStateException("Response is frozen");
+    }
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * @return true if the response was frozen and cannot be changed anymore
+   */
+  boolean isFrozen() {
+    return keepAliveBytes != null;
+  }
+
+  /**
+   * Encodes the response once for kept alive and for closing connections, so
+   * a response that is sent over and over (e.g. from the ResponseCache) is
+   * written straight from the encoded bytes. It cannot be changed afterwards.
+   * Only for byte array bodies.
+   * @return this response
+   */
+  Response freeze() {
+    if (keepAliveBytes == null) {
+      closeBytes = encode(false);
+      keepAliveBytes = encode(true);
+    }
+    return this;
+  }
+
+  /**
+   * @return true if the body is sent after the head (see transferBodyTo)
+   *         instead of as a byte array
+   */
+  boolean isStreamed() {
+    return segments != null || source != null;
+  }
+
+  /**
+   * @return number of body bytes, -1 for a chunked body
+   */
+  long contentLength() {
+    if (source != null) {
+      return -1;
+    }
+    return segments != null ? streamedLength : body.length;
+  }
+
+  /**
+   * Sends a streamed body without chunks, it ends when the connection is
+   * closed. For HTTP/1.0 clients, which do not know chunked encoding.
+   */
+  void closeDelimited() {
+    chunked = false;
+  }
+
+  /**
+   * @return true if the connection has to be closed after this response,
+   *         because that is how the client sees where its body ends
+   */
+  boolean closesConnection() {
+    return source != null && !chunked;
+  }
+
+  /**
+   * @return true once the whole streamed body was sent (or there is none)
+   */
+  boolean bodyDone() {
+    if (source != null) {
+      return streamDone;
+    }
+    return segments == null || segment >= segments.length;
+  }
+
+  /**
+   * @return true if the streamed body has a LiveSource that has nothing to
+   *         send right now, everything it had is written. Wait with
+   *         awaitBody or onBodyAvailable before transferring again.
+   */
+  boolean bodyStalled() {
+    return source instanceof LiveSource && !streamDone && !sourceDone && (chunk == null || !chunk.hasRemaining());
+  }
+
+  /**
+   * Blocks until a stalled body has something to send again
+   */
+  void awaitBody() throws InterruptedIOException {
+    ((LiveSource) source).await();
+  }
+
+  /**
+   * Calls the listener once a stalled body has something to send again
+   */
+  void onBodyAvailable(Runnable listener) {
+    ((LiveSource) source).onAvailable(listener);
+  }
+
+  /**
+   * Sends the next part of the streamed body, at most MAX_TRANSFER bytes. A
+   * non-blocking channel may take less, only what fits into the socket
+   * buffer, so call this until {@link #bodyDone()}.
+   * @param target the socket channel
+   * @return number of bytes written
+   * @throws IOException if the transfer fails
+   */
+  long transferBodyTo(WritableByteChannel target) throws IOException {
+    return source != null ? transferChunksTo(target) : transferSegmentsTo(target);
+  }
+
+  private long transferSegmentsTo(WritableByteChannel target) throws IOException {
+    long total = 0;
+    while (segment < segments.length) {
+      Segment part = segments[segment];
+      long written;
+      if (part.bytes != null) {
+        written = target.write(part.bytes);
+      } else {
+        written = file.transferTo(part.position + part.sent, Math.min(part.length - part.sent, MAX_TRANSFER - total),
+            target);
+      }
+      part.sent += written;
+      total += written;
+      if (part.sent >= part.length) {
+        segment++;
+      } else if (written == 0) {
+        break; // socket buffer is full
+      }
+      if (total >= MAX_TRANSFER) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  private long transferChunksTo(WritableByteChannel target) throws IOException {
+    long total = 0;
+    while (!streamDone) {
+      if (chunk == null || !chunk.hasRemaining()) {
+        if (sourceDone) {
+          streamDone = true;
+          break;
+        }
+        nextChunk();
+        if (!chunk.hasRemaining() && !sourceDone) {
+          break; // a live source has nothing right now
+        }
+      }
+      total += target.write(chunk);
+      if (chunk.hasRemaining()) {
+        break; // socket buffer is full
+      }
+      if (total >= MAX_TRANSFER) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Reads the next chunk from the source into the chunk buffer, framed as
+   * "size CRLF data CRLF" (plus the last chunk "0 CRLF CRLF" at the end)
+   */
+  private void nextChunk() throws IOException {
+    if (chunk == null) {
+      chunk = ByteBuffer.allocate(CHUNK_HEAD_ROOM + CHUNK_SIZE + 2 + LAST_CHUNK.length);
+    }
+    chunk.clear();
+    chunk.position(CHUNK_HEAD_ROOM).limit(CHUNK_HEAD_ROOM + CHUNK_SIZE);
+    while (chunk.hasRemaining()) {
+      int read = source.read(chunk);
+      if (read < 0) {
+        sourceDone = true;
+        break;
+      } else if (read == 0) {
+        break;
+      }
+    }
+    int length = chunk.position() - CHUNK_HEAD_ROOM;
+    int start = CHUNK_HEAD_ROOM;
+    chunk.limit(chunk.capacity());
+    if (chunked) {
+      if (length > 0) {
+        byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        start -= size.length;
+        for (int i = 0; i < size.length; i++) {
+          chunk.put(start + i, size[i]);
+        }
+        chunk.put((byte) '\r').put((byte) '\n');
+      }
+      if (sourceDone) {
+        chunk.put(LAST_CHUNK);
+      }
+    }
+    chunk.limit(chunk.position());
+    chunk.position(start);
+  }
+
+  /**
+   * Closes the file or source of the body, if any. Called once the response
+   * was written or the connection failed.
+   */
+  void close() {
+    try {
+      if (file != null) {
+        file.close();
+      }
+      if (source != null) {
+        source.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Encodes status line, headers and body. The body length is always sent
+   * so the client knows where the response ends without us closing the
+   * connection, a streamed body of unknown length is sent chunked. For a
+   * streamed body only the head is returned, the body follows with
+   * {@link #transferBodyTo}. Frozen responses return the same array
+   * every time, it must not be changed.
+   * @param keepAlive whether the connection stays open after this response
+   * @return the bytes to write to the socket
+   */
+  byte[] encode(boolean keepAlive) {
+    if (keepAliveBytes != null) {
+      return keepAlive ? keepAliveBytes : closeBytes;
+    }
+    StringBuilder builder = new StringBuilder();
+    builder.append("HTTP/1.1 ").append(status).append(" ").append(reason).append("\r\n");
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    if (source == null && status != 304) {
+      // a 304 has no body, a Content-Length there would have to be the one of the 200
+      builder.append("Content-Length: ").append(contentLength()).append("\r\n");
+    } else if (source != null && chunked) {
+      builder.append("Transfer-Encoding: chunked\r\n");
+    }
+    keepAlive = keepAlive && !closesConnection();
+    builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    builder.append("\r\n");
+
+    byte[] head = builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+    byte[] encoded = new byte[head.length + body.length];
+    System.arraycopy(head, 0, encoded, 0, head.length);
+    System.arraycopy(body, 0, encoded, head.length, body.length);
+    return encoded;
+  }
+
+  /**
+   * One piece of a streamed file body: a region of the file or bytes sent
+   * in between (the part heads of multipart/byteranges)
+   */
+  private static class Segment {
+    final ByteBuffer bytes;
+    final long position;
+    final long length;
+    long sent = 0;
+
+    Segment(long position, long length) {
+      this.bytes = null;
+      this.position = position;
+      this.length = length;
+    }
+
+    Segment(byte[] bytes) {
+      this.bytes = ByteBuffer.wrap(bytes);
+      this.position = 0;
+      this.length = bytes.length;
+    }
+  }
+}
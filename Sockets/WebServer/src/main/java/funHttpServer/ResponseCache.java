@@ -0,0 +1,149 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps fully encoded responses for pages built from files in memory, so a
+ * hot page is written straight from a byte array without reading the file
+ * or re-running the template again.
+ *
+ * Every entry remembers the modification times of the files it was built
+ * from. At most every checkMillis the files are looked at again and the
+ * entry is rebuilt if one of them changed. Data that is not a file (like the
+ * DirectoryIndex) passes a version instead, which is compared on every get. When the cached bytes go over the
+ * budget the least recently used entries are dropped.
+ */
+class ResponseCache {
+
+  /**
+   * Builds the response when it is not cached or out of date
+   */
+  interface Loader {
+    Response load() throws IOException;
+  }
+
+  private static class Entry {
+    final Response response;
+    final long version;
+    final long stamp;
+    final long size;
+    volatile long checkedAt;
+
+    Entry(Response response, long version, long stamp, long checkedAt) {
+      this.response = response;
+      this.version = version;
+      this.stamp = stamp;
+      this.size = response.encode(true).length + response.encode(false).length;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private final long maxBytes;
+  private final long checkMillis;
+  // access ordered, so the first entry is always the least recently used one
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes budget for all cached responses together
+   * @param checkMillis how long an entry is served before its files are checked again
+   */
+  ResponseCache(long maxBytes, long checkMillis) {
+    this.maxBytes = maxBytes;
+    this.checkMillis = checkMillis;
+  }
+
+  /**
+   * Returns the cached response for the key, or loads and caches it if it is
+   * missing or one of its files changed
+   * @param key what the response is cached under, usually the request path
+   * @param version version of the data (besides the files) the response is
+   *                built from, 0 if there is none
+   * @param loader builds the response from the files
+   * @param files the files the response is built from
+   * @return the response, it must not be changed since others may be sending it too
+   * @throws IOException if the response had to be loaded and that failed
+   */
+  Response get(String key, long version, Loader loader, Path... files) throws IOException {
+    long now = System.currentTimeMillis();
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry != null && entry.version == version) {
+      if (now - entry.checkedAt < checkMillis) {
+        hits.incrementAndGet();
+        return entry.response;
+      }
+      if (stampOf(files) == entry.stamp) {
+        entry.checkedAt = now;
+        hits.incrementAndGet();
+        return entry.response;
+      }
+    }
+
+    // missing or stale: take the stamp before loading, so a change while
+    // loading makes the next check load again
+    misses.incrementAndGet();
+    long stamp = stampOf(files);
+    Response response = loader.load().freeze();
+    put(key, new Entry(response, version, stamp, now));
+    return response;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.size;
+    }
+    if (entry.size > maxBytes) {
+      return; // would push everything else out, just serve it uncached
+    }
+    entries.put(key, entry);
+    bytes += entry.size;
+
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().getValue().size;
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param files the files a response is built from
+   * @return a value that changes when any of the files is modified, resized or removed
+   */
+  private static long stampOf(Path... files) throws IOException {
+    long stamp = 17;
+    for (Path file : files) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        stamp = stamp * 31 + attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        stamp = stamp * 31 + attributes.size();
+      } catch (NoSuchFileException e) {
+        stamp = stamp * 31 - 1;
+      }
+    }
+    return stamp;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "cache entries=" + entries.size() + " bytes=" + bytes + " hits=" + hits.get()
+        + " misses=" + misses.get() + " evictions=" + evictions.get();
+  }
+}
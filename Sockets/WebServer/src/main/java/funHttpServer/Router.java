@@ -0,0 +1,344 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Finds the handler for a request by its method and path. The routes are
+ * stored in a trie with one node per path segment, so looking up a request
+ * walks the segments of its path and costs the same no matter how many
+ * routes there are.
+ *
+ * Route templates are paths without the leading "/", with segments that are
+ *   json          - a literal segment, matched exactly
+ *   {name}        - any single segment, available as params.path("name")
+ *   *             - the rest of the path (only last), params.rest()
+ * e.g. "file/*", "users/{id}/repos" or "" for the root page. A literal
+ * segment wins over {name}, which wins over *.
+ *
+ * The query is not part of the template, handlers read it through Params,
+ * e.g. params.intParam("num1"), which answers with a 400 if it is missing or
+ * not a number.
+ *
+ * Handlers that have to wait for something else (like another server) are
+ * registered with getAsync and return a future, so the thread that called
+ * route() is not blocked while they wait.
+ *
+ * Handlers that take a request body (e.g. an upload) are registered with
+ * body and get the body streamed to the BodySink they open, the connection
+ * reads it after route() returned.
+ */
+class Router {
+
+  /**
+   * Answers a request that matched a route
+   */
+  interface Handler {
+    Response handle(Request request, Params params) throws IOException;
+  }
+
+  /**
+   * Answers a request that matched a route once something it waits for is done.
+   * Everything it needs from the request has to be read before it returns,
+   * since the Request is reused for the next request on the connection.
+   */
+  interface AsyncHandler {
+    CompletableFuture<Response> handle(Request request, Params params) throws IOException;
+  }
+
+  /**
+   * Takes the body of a request that matched a route. Called when the head
+   * arrived, before any of the body is read, so it can still refuse the
+   * body, e.g. with a 413 when the Content-Length is too large.
+   */
+  interface BodyHandler {
+    /**
+     * @return where the body goes, its response() answers the request
+     */
+    BodySink open(Request request, Params params) throws IOException;
+  }
+
+  private static class Node {
+    final Map<String, Node> children = new HashMap<>();
+    Node param;
+    String paramName;
+    Node rest;
+    // template the node was registered with, e.g. "/file/*"
+    String template;
+    // methods and their handlers, in registration order
+    final List<String> methods = new ArrayList<>();
+    final List<AsyncHandler> handlers = new ArrayList<>();
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * Registers a handler for GET requests
+   * @param template route template, see the class comment
+   * @param handler answers matching requests
+   */
+  void get(String template, Handler handler) {
+    add("GET", template, handler);
+  }
+
+  /**
+   * Registers a handler for GET requests that answers asynchronously
+   * @param template route template, see the class comment
+   * @param handler answers matching requests
+   */
+  void getAsync(String template, AsyncHandler handler) {
+    addAsync("GET", template, handler);
+  }
+
+  /**
+   * Registers a handler
+   * @param method HTTP method, e.g. "GET" or "POST"
+   * @param template route template, see the class comment
+   * @param handler answers matching requests
+   */
+  void add(String method, String template, Handler handler) {
+    addAsync(method, template, (request, params) -> CompletableFuture.completedFuture(handler.handle(request, params)));
+  }
+
+  /**
+   * Registers a handler that takes the request body while it arrives. The
+   * framing (Content-Length or chunked) is checked before the handler is
+   * called, the body is then available to the connection as params.body().
+   * @param method HTTP method, e.g. "PUT" or "POST"
+   * @param template route template, see the class comment
+   * @param handler opens the sink for matching requests
+   */
+  void body(String method, String template, BodyHandler handler) {
+    addAsync(method, template, (request, params) -> {
+      RequestBody body = new RequestBody(request);
+      BodySink sink = handler.open(request, params);
+      body.sendTo(sink);
+      params.body = body;
+      return sink.response();
+    });
+  }
+
+  /**
+   * Registers a handler that answers asynchronously
+   * @param method HTTP method, e.g. "GET" or "POST"
+   * @param template route template, see the class comment
+   * @param handler answers matching requests
+   */
+  void addAsync(String method, String template, AsyncHandler handler) {
+    Node node = root;
+    String[] segments = template.isEmpty() ? new String[0] : template.split("/");
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      if (segment.equals("*")) {
+        if (i != segments.length - 1) {
+          throw new IllegalArgumentException("* has to be the last segment: " + template);
+        }
+        if (node.rest == null) {
+          node.rest = new Node();
+        }
+        node = node.rest;
+      } else if (segment.startsWith("{") && segment.endsWith("}")) {
+        String name = segment.substring(1, segment.length() - 1);
+        if (node.param == null) {
+          node.param = new Node();
+          node.paramName = name;
+        } else if (!node.paramName.equals(name)) {
+          throw new IllegalArgumentException("{" + node.paramName + "} and {" + name + "} at the same place: " + template);
+        }
+        node = node.param;
+      } else {
+        node = node.children.computeIfAbsent(segment, s -> new Node());
+      }
+    }
+    if (node.methods.contains(method)) {
+      throw new IllegalArgumentException("Route registered twice: " + method + " " + template);
+    }
+    node.template = "/" + template;
+    node.methods.add(method);
+    node.handlers.add(handler);
+  }
+
+  /**
+   * Calls the handler registered for the request's method and path
+   * @param request the parsed request
+   * @param params filled with the parameters and the template of the route
+   * @return completes with the handler's response, 404 if no route matches
+   *         the path, 405 if the path matches but not the method, 400 if a
+   *         parameter is wrong. Already completed unless the handler is async.
+   * @throws IOException if the handler fails
+   */
+  CompletableFuture<Response> route(Request request, Params params) throws IOException {
+    String path = request.path();
+    Node node = match(root, path, 0, params);
+    if (node == null || node.methods.isEmpty()) {
+      return CompletableFuture.completedFuture(
+          Response.html(404, "Not Found", "I am not sure what you want me to do..."));
+    }
+    params.route = node.template;
+    for (int i = 0; i < node.methods.size(); i++) {
+      if (request.isMethod(node.methods.get(i))) {
+        try {
+          return node.handlers.get(i).handle(request, params);
+        } catch (HttpParser.BadRequestException e) {
+          return CompletableFuture.completedFuture(Response.html(e.status, e.reason, e.getMessage()));
+        }
+      }
+    }
+    return CompletableFuture.completedFuture(
+        Response.html(405, "Method Not Allowed", "Only " + String.join(", ", node.methods) + " allowed here")
+            .header("Allow", String.join(", ", node.methods)));
+  }
+
+  /**
+   * Walks the trie from node for the segment of path starting at from
+   * @return the node for the whole path, or null if there is none
+   */
+  private static Node match(Node node, String path, int from, Params params) {
+    if (from >= path.length()) {
+      if (!node.methods.isEmpty() || node.rest == null) {
+        return node;
+      }
+      params.rest = "";
+      return node.rest;
+    }
+    int slash = path.indexOf('/', from);
+    int end = slash < 0 ? path.length() : slash;
+    int next = slash < 0 ? path.length() : slash + 1;
+    String segment = path.substring(from, end);
+
+    Node child = node.children.get(segment);
+    if (child != null) {
+      Node found = match(child, path, next, params);
+      if (found != null && !found.methods.isEmpty()) {
+        return found;
+      }
+    }
+    if (node.param != null) {
+      Node found = match(node.param, path, next, params);
+      if (found != null && !found.methods.isEmpty()) {
+        params.putPath(node.paramName, segment);
+        return found;
+      }
+    }
+    if (node.rest != null) {
+      params.rest = path.substring(from);
+      return node.rest;
+    }
+    return null;
+  }
+
+  /**
+   * Path parameters of the matched route and the query of the request, with
+   * typed getters that answer with a 400 when a parameter is wrong
+   */
+  static class Params {
+    private final Request request;
+    private Map<String, String> path;
+    private String rest;
+    private Map<String, String> query;
+    private String route;
+    private RequestBody body;
+
+    Params(Request request) {
+      this.request = request;
+    }
+
+    private void putPath(String name, String value) {
+      if (path == null) {
+        path = new HashMap<>();
+      }
+      path.put(name, value);
+    }
+
+    /**
+     * @param name name of a {name} segment in the route template
+     * @return the segment of the request path
+     */
+    String path(String name) {
+      return path == null ? null : path.get(name);
+    }
+
+    /**
+     * @return template of the matched route, e.g. "/file/*", null if no
+     *         route matched the path
+     */
+    String route() {
+      return route;
+    }
+
+    /**
+     * @return the body the route takes, which the connection has to read
+     *         next, null if the route does not take one
+     */
+    RequestBody body() {
+      return body;
+    }
+
+    /**
+     * @return the part of the path matched by the * of the route template
+     */
+    String rest() {
+      return rest;
+    }
+
+    /**
+     * @param name query parameter name
+     * @return the decoded value, or null if the request does not have it
+     * @throws UnsupportedEncodingException if the query is not valid UTF-8
+     */
+    String query(String name) throws UnsupportedEncodingException {
+      if (query == null) {
+        String raw = request.query();
+        query = raw == null ? new LinkedHashMap<>() : WebServer.splitQuery(raw);
+      }
+      return query.get(name);
+    }
+
+    /**
+     * @param name query parameter name
+     * @return the decoded value
+     * @throws HttpParser.BadRequestException (400) if the request does not have it
+     */
+    String require(String name) throws IOException {
+      String value = query(name);
+      if (value == null || value.isEmpty()) {
+        throw new HttpParser.BadRequestException(400, "Bad Request", "Missing parameter: " + name);
+      }
+      return value;
+    }
+
+    /**
+     * @param name query parameter name
+     * @return the value as an int
+     * @throws HttpParser.BadRequestException (400) if it is missing or not an int
+     */
+    int intParam(String name) throws IOException {
+      String value = require(name);
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new HttpParser.BadRequestException(400, "Bad Request", name + " has to be an integer: " + value);
+      }
+    }
+
+    /**
+     * @param name query parameter name
+     * @return the value as a long
+     * @throws HttpParser.BadRequestException (400) if it is missing or not a long
+     */
+    long longParam(String name) throws IOException {
+      String value = require(name);
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        throw new HttpParser.BadRequestException(400, "Bad Request", name + " has to be an integer: " + value);
+      }
+    }
+  }
+}
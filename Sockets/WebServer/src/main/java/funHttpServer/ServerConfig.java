@@ -0,0 +1,145 @@
+package funHttpServer;
+
+/**
+ * Startup settings for the fun WebServer. Every value is read from a Java
+ * system property (prefixed with "http.") so it can be changed without
+ * touching the code, e.g.
+ *
+ *   gradle FunWebServer -Phttp.mode=pool -Phttp.poolSize=64
+ *
+ * The gradle task forwards all -Phttp.* properties to the server.
+ */
+class ServerConfig {
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * How accepted connections are handed off:
+   *   virtual - one virtual thread per connection (falls back to "thread"
+   *             when the JVM has no virtual threads)
+   *   thread  - one platform thread per connection (threads are reused)
+   *   pool    - a fixed number of platform threads with a bounded queue,
+   *             connections beyond poolSize + queueDepth get a 503
+   *   nio     - a few non-blocking event loops serve all connections,
+   *             see NioServer
+   *
+   * In every mode connections beyond maxConnections get a 503.
+   */
+  final String mode = System.getProperty("http.mode", "virtual").toLowerCase();
+
+  /** number of worker threads in "pool" mode */
+  final int poolSize = Integer.getInteger("http.poolSize", CORES * 8);
+
+  /** connections allowed to wait for a worker in "pool" mode */
+  final int queueDepth = Integer.getInteger("http.queueDepth", 256);
+
+  /**
+   * listening sockets sharing the port with SO_REUSEPORT (Linux 3.9+), each
+   * with its own accepting thread; in "nio" mode each one is served by an
+   * event loop, which keeps the connections it accepts
+   */
+  final int acceptors = Integer.getInteger("http.acceptors", 1);
+
+  /** number of selector threads in "nio" mode */
+  final int eventLoops = Integer.getInteger("http.eventLoops", CORES);
+
+  /** largest request head (request line and headers) accepted, also the read buffer size */
+  final int maxHeaderBytes = Integer.getInteger("http.maxHeaderBytes", 16 * 1024);
+
+  /** most header lines accepted in one request */
+  final int maxHeaders = Integer.getInteger("http.maxHeaders", 100);
+
+  /** read buffers of closed connections kept for reuse */
+  final int pooledBuffers = Integer.getInteger("http.pooledBuffers", 1024);
+
+  /** backlog of the listening socket */
+  final int backlog = Integer.getInteger("http.backlog", 512);
+
+  /** how often the latency report is printed, 0 turns it off */
+  final int reportSeconds = Integer.getInteger("http.reportSeconds", 10);
+
+  /** a keep-alive connection without a new request for this long is closed */
+  final int idleTimeoutMillis = Integer.getInteger("http.idleTimeoutMillis", 5000);
+
+  /** a request head has to be complete this long after its first byte arrived, otherwise 408 */
+  final int headerTimeoutMillis = Integer.getInteger("http.headerTimeoutMillis", 10 * 1000);
+
+  /**
+   * a response has to be ready this long after its request arrived, and a
+   * response being sent must not stall for longer, otherwise the connection
+   * is closed
+   */
+  final int requestTimeoutMillis = Integer.getInteger("http.requestTimeoutMillis", 30 * 1000);
+
+  /** connections open at the same time, more are answered with a 503 right away */
+  final int maxConnections = Integer.getInteger("http.maxConnections", 10000);
+
+  /** seconds a client is asked to wait (Retry-After) before trying again after a 503 */
+  final int retryAfterSeconds = Integer.getInteger("http.retryAfterSeconds", 1);
+
+  /** after this many requests a keep-alive connection is closed */
+  final int maxRequestsPerConnection = Integer.getInteger("http.maxRequestsPerConnection", 100);
+
+  /** memory budget of the page cache in bytes */
+  final long cacheBytes = Long.getLong("http.cacheBytes", 16 * 1024 * 1024);
+
+  /** how long a cached page is served before its files are checked for changes */
+  final long cacheCheckMillis = Long.getLong("http.cacheCheckMillis", 1000);
+
+  /** smallest response body that is compressed for clients accepting gzip or deflate */
+  final int compressMinBytes = Integer.getInteger("http.compressMinBytes", 1024);
+
+  /** compression level, 1 (fastest) to 9 (smallest) */
+  final int compressLevel = Integer.getInteger("http.compressLevel", 6);
+
+  /** text files served by /file/ up to this size are compressed and cached, bigger ones are streamed */
+  final long compressMaxFileBytes = Long.getLong("http.compressMaxFileBytes", 1024 * 1024);
+
+  /** directory PUT or POST /upload/NAME stores its files in */
+  final String uploadDir = System.getProperty("http.uploadDir", "uploads");
+
+  /** largest upload accepted, bigger ones are answered with a 413 */
+  final long maxUploadBytes = Long.getLong("http.maxUploadBytes", 10L * 1024 * 1024 * 1024);
+
+  /** how often /stream publishes an event, 0 turns it off */
+  final long streamIntervalMillis = Long.getLong("http.streamIntervalMillis", 1000);
+
+  /** events kept for a /stream client that has not read them yet, older ones are dropped */
+  final int streamQueueEvents = Integer.getInteger("http.streamQueueEvents", 64);
+
+  /** where /github sends its queries, e.g. a local stub for testing */
+  final String upstreamUrl = System.getProperty("http.upstreamUrl", "https://api.github.com/");
+
+  /** how long an upstream answer is served before it is revalidated */
+  final long upstreamTtlMillis = Long.getLong("http.upstreamTtlMillis", 60 * 1000);
+
+  /** how long to wait for the upstream before answering with a 502 */
+  final long upstreamTimeoutMillis = Long.getLong("http.upstreamTimeoutMillis", 20 * 1000);
+
+  /** most upstream answers kept in memory */
+  final int upstreamEntries = Integer.getInteger("http.upstreamEntries", 1000);
+
+  /**
+   * Reads the configuration from the system properties, using defaults for
+   * everything that was not set
+   * @return the configuration to start the server with
+   */
+  static ServerConfig fromSystemProperties() {
+    return new ServerConfig();
+  }
+
+  @Override
+  public String toString() {
+    return "mode=" + mode + ", poolSize=" + poolSize + ", queueDepth=" + queueDepth
+        + ", eventLoops=" + eventLoops + ", acceptors=" + acceptors + ", maxHeaderBytes=" + maxHeaderBytes + ", maxHeaders=" + maxHeaders
+        + ", backlog=" + backlog + ", idleTimeoutMillis=" + idleTimeoutMillis
+        + ", headerTimeoutMillis=" + headerTimeoutMillis + ", requestTimeoutMillis=" + requestTimeoutMillis
+        + ", maxConnections=" + maxConnections + ", retryAfterSeconds=" + retryAfterSeconds
+        + ", maxRequestsPerConnection=" + maxRequestsPerConnection
+        + ", cacheBytes=" + cacheBytes + ", cacheCheckMillis=" + cacheCheckMillis
+        + ", compressMinBytes=" + compressMinBytes + ", compressLevel=" + compressLevel
+        + ", streamIntervalMillis=" + streamIntervalMillis + ", streamQueueEvents=" + streamQueueEvents
+        + ", uploadDir=" + uploadDir + ", maxUploadBytes=" + maxUploadBytes
+        + ", upstreamUrl=" + upstreamUrl + ", upstreamTtlMillis=" + upstreamTtlMillis
+        + ", upstreamTimeoutMillis=" + upstreamTimeoutMillis;
+  }
+}
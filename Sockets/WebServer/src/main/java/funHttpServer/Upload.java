@@ -0,0 +1,138 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores a request body as a file in the upload directory. The body is
+ * written to a temp file next to the target while it arrives and hashed on
+ * the way (SHA-256), so an upload of any size needs no more memory than the
+ * connection's read buffer and the checksum is ready when the last byte is.
+ *
+ * Only a complete upload is moved to its name, in one step, so nobody ever
+ * sees half a file under that name. A body that is too large, malformed or
+ * cut off is deleted.
+ */
+class Upload implements BodySink {
+  private final Path target;
+  private final Path temp;
+  private final FileChannel file;
+  private final MessageDigest digest;
+  private final long maxBytes;
+  private long received = 0;
+  private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+  private Upload(Path target, Path temp, long maxBytes) throws IOException {
+    this.target = target;
+    this.temp = temp;
+    this.maxBytes = maxBytes;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("every Java has SHA-256", e);
+    }
+    file = FileChannel.open(temp, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Starts an upload, before any of the body is read
+   * @param dir upload directory, created if it does not exist
+   * @param name file name the upload is stored as
+   * @param length Content-Length of the request, 0 if it is chunked
+   * @param maxBytes largest body accepted
+   * @return the sink to stream the body to
+   * @throws HttpParser.BadRequestException 400 if the name is not a plain
+   *         file name, 413 if the Content-Length is larger than maxBytes
+   */
+  static Upload open(Path dir, String name, long length, long maxBytes) throws IOException {
+    if (name == null || name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+      throw new HttpParser.BadRequestException(400, "Bad Request", "Not a valid file name: " + name);
+    }
+    if (length > maxBytes) {
+      throw new HttpParser.BadRequestException(413, "Payload Too Large",
+          "Uploads can be at most " + maxBytes + " bytes");
+    }
+    Files.createDirectories(dir);
+    // in the same directory, so it can be moved to the target without copying
+    Path temp = Files.createTempFile(dir, ".upload-", ".tmp");
+    try {
+      return new Upload(dir.resolve(name), temp, maxBytes);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    received += data.remaining();
+    if (received > maxBytes) {
+      throw new HttpParser.BadRequestException(413, "Payload Too Large",
+          "Uploads can be at most " + maxBytes + " bytes");
+    }
+    digest.update(data.duplicate());
+    while (data.hasRemaining()) {
+      file.write(data);
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    boolean replaced = Files.exists(target);
+    try {
+      file.close();
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      abort(e);
+      throw e;
+    }
+    String sha256 = HexFormat.of().formatHex(digest.digest());
+    String json = "{\"name\":\"" + target.getFileName() + "\",\"bytes\":" + received
+        + ",\"sha256\":\"" + sha256 + "\"}";
+    Response created = new Response(replaced ? 200 : 201, replaced ? "OK" : "Created", "application/json",
+        json.getBytes(StandardCharsets.UTF_8));
+    // where to download it, if the upload directory is below the one /file/ serves
+    Path root = Paths.get("").toAbsolutePath();
+    Path stored = target.toAbsolutePath().normalize();
+    if (stored.startsWith(root)) {
+      created.header("Location", "/file/" + root.relativize(stored).toString().replace('\\', '/'));
+    }
+    AsyncLog.info("Stored upload " + target + ", " + received + " bytes, sha256 " + sha256);
+    response.complete(created);
+  }
+
+  @Override
+  public void abort(Throwable reason) {
+    if (!(reason instanceof HttpParser.BadRequestException)) {
+      AsyncLog.warn("Upload of " + target + " aborted after " + received + " bytes: " + reason);
+    }
+    try {
+      file.close();
+      Files.deleteIfExists(temp);
+    } catch (IOException e) {
+      AsyncLog.warn("Cannot delete " + temp + ": " + e.getMessage());
+    }
+    response.completeExceptionally(reason);
+  }
+
+  @Override
+  public CompletableFuture<Response> response() {
+    return response;
+  }
+}
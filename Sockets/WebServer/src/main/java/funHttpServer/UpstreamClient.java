@@ -0,0 +1,170 @@
+package funHttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches JSON from an upstream REST API (GitHub for the /github endpoint)
+ * without blocking the thread that asked for it. One HttpClient is shared by
+ * all requests, so its connections to the upstream are reused.
+ *
+ * Answers are cached for ttlMillis. After that the next request revalidates
+ * the entry with If-None-Match, and an unchanged answer (304) is served from
+ * memory again. If several clients ask for the same path while it is being
+ * fetched, they all wait for that one upstream call instead of each making
+ * their own. If the upstream fails and an older answer is cached, the older
+ * answer is served.
+ */
+class UpstreamClient {
+
+  /**
+   * An upstream answer
+   */
+  static class Result {
+    final int status;
+    final byte[] body;
+    final String etag;
+    final long fetchedAt;
+
+    Result(int status, byte[] body, String etag, long fetchedAt) {
+      this.status = status;
+      this.body = body;
+      this.etag = etag;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final HttpClient client;
+  private final String baseUrl;
+  private final long ttlMillis;
+  private final Duration timeout;
+
+  // least recently used first, bounded by maxEntries
+  private final Map<String, Result> entries;
+  // paths being fetched right now, the futures are shared by everybody asking for them
+  private final ConcurrentHashMap<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param baseUrl prefix of every fetched URL, e.g. "https://api.github.com/"
+   * @param ttlMillis how long an answer is served without asking the upstream
+   * @param timeoutMillis how long to wait for the upstream
+   * @param maxEntries most answers kept in memory
+   */
+  UpstreamClient(String baseUrl, long ttlMillis, long timeoutMillis, int maxEntries) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.ttlMillis = ttlMillis;
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Gets the answer for a path below the base URL, from the cache if it is
+   * fresh enough
+   * @param path e.g. "users/amehlhase316/repos"
+   * @return completes with the answer, or exceptionally if the upstream
+   *         failed and nothing was cached
+   * @throws IllegalArgumentException if the path does not make a valid URL
+   */
+  CompletableFuture<Result> get(String path) {
+    URI uri = URI.create(baseUrl + path);
+    Result cached;
+    synchronized (entries) {
+      cached = entries.get(path);
+    }
+    if (cached != null && System.currentTimeMillis() - cached.fetchedAt < ttlMillis) {
+      hits.incrementAndGet();
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    CompletableFuture<Result> result = new CompletableFuture<>();
+    CompletableFuture<Result> running = inFlight.putIfAbsent(path, result);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return running;
+    }
+    fetches.incrementAndGet();
+    CompletableFuture<Result> fetching;
+    try {
+      fetching = fetch(path, uri, cached);
+    } catch (RuntimeException e) {
+      inFlight.remove(path, result);
+      throw e;
+    }
+    fetching.whenComplete((fetched, error) -> {
+      inFlight.remove(path, result);
+      if (error == null) {
+        result.complete(fetched);
+      } else if (cached != null) {
+        // better an old answer than none
+        failures.incrementAndGet();
+        result.complete(cached);
+      } else {
+        failures.incrementAndGet();
+        result.completeExceptionally(error);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Asks the upstream, revalidating the cached answer if there is one
+   */
+  private CompletableFuture<Result> fetch(String path, URI uri, Result cached) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .header("Accept", "application/json");
+    if (cached != null && cached.etag != null) {
+      request.header("If-None-Match", cached.etag);
+    }
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+      long now = System.currentTimeMillis();
+      Result result;
+      if (response.statusCode() == 304 && cached != null) {
+        notModified.incrementAndGet();
+        result = new Result(cached.status, cached.body, cached.etag, now);
+      } else {
+        result = new Result(response.statusCode(), response.body(),
+            response.headers().firstValue("ETag").orElse(null), now);
+      }
+      if (result.status == 200) {
+        synchronized (entries) {
+          entries.put(path, result);
+        }
+      }
+      return result;
+    });
+  }
+
+  @Override
+  public String toString() {
+    int size;
+    synchronized (entries) {
+      size = entries.size();
+    }
+    return "upstream entries=" + size + " hits=" + hits.get() + " fetches=" + fetches.get()
+        + " notModified=" + notModified.get() + " coalesced=" + coalesced.get() + " failures=" + failures.get();
+  }
+}
@@ -0,0 +1,74 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Closes the sockets of requests that took too long in the blocking modes.
+ * A read timeout does not help against a client that stops reading our
+ * response, a blocked write has no timeout in Java. Closing the socket from
+ * another thread makes the blocked read or write throw, so the worker gives
+ * up the connection instead of hanging on it forever.
+ *
+ * The event loops of the nio mode never block, they check their deadlines
+ * themselves (see NioServer).
+ */
+class Watchdog {
+  // System.nanoTime() by which each watched socket has to be done
+  private final Map<Socket, Long> deadlines = new ConcurrentHashMap<>();
+  private final Metrics metrics;
+
+  /**
+   * Starts checking the deadlines on a daemon thread
+   * @param checkMillis how often the deadlines are checked
+   * @param metrics counts the closed sockets
+   */
+  Watchdog(long checkMillis, Metrics metrics) {
+    this.metrics = metrics;
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(checkMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+        closeExpired(System.nanoTime());
+      }
+    }, "watchdog");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Closes the socket if it is not disarmed before the deadline
+   * @param socket the client socket
+   * @param deadline System.nanoTime() by which the request has to be done
+   */
+  void arm(Socket socket, long deadline) {
+    deadlines.put(socket, deadline);
+  }
+
+  void disarm(Socket socket) {
+    deadlines.remove(socket);
+  }
+
+  private void closeExpired(long now) {
+    for (Map.Entry<Socket, Long> entry : deadlines.entrySet()) {
+      if (now - entry.getValue() > 0 && deadlines.remove(entry.getKey(), entry.getValue())) {
+        metrics.timedOut("request");
+        try {
+          Socket socket = entry.getKey();
+          // reset instead of a normal close, which would still try to send what is buffered
+          socket.setSoLinger(true, 0);
+          // a thread in FileChannel.transferTo is not woken up by close, only by shutdown
+          socket.shutdownOutput();
+          socket.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
@@ -1,365 +1,966 @@
-/*
-Simple Web Server in Java which allows you to call 
-localhost:9000/ and show you the root.html webpage from the www/root.html folder
-You can also do some other simple GET requests:
-1) /random shows you a random picture (well random from the set defined)
-2) json shows you the response as JSON for /random instead the html page
-3) /file/filename shows you the raw file (not as HTML)
-4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
-5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
-   JSON which will for now only be printed in the console. See the todo below
-
-The reading of the request is done "manually", meaning no library that helps making things a 
-little easier is used. This is done so you see exactly how to pars the request and 
-write a response back
-*/
-
-package funHttpServer;
-
-import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.Map;
-import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
-
-class WebServer {
-  public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
-  }
-
-  /**
-   * Main thread
-   * @param port to listen on
-   */
-  public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
-
-    try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (sock != null) {
-        try {
-          server.close();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      }
-    }
-  }
-
-  /**
-   * Used in the "/random" endpoint
-   */
-  private final static HashMap<String, String> _images = new HashMap<>() {
-    {
-      put("streets", "https://iili.io/JV1pSV.jpg");
-      put("bread", "https://iili.io/Jj9MWG.jpg");
-    }
-  };
-
-  private Random random = new Random();
-
-  /**
-   * Reads in socket stream and generates a response
-   * @param inStream HTTP input stream from socket
-   * @return the byte encoded HTTP response
-   */
-  public byte[] createResponse(InputStream inStream) {
-
-    byte[] response = null;
-    BufferedReader in = null;
-
-    try {
-
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
-
-      String request = null;
-
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
-
-        System.out.println("Received: " + line);
-
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
-
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
-
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
-
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          query_pairs = splitQuery(request.replace("multiply?", ""));
-
-          // extract required fields from parameters
-          Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-          Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-
-          // do math
-          Integer result = num1 * num2;
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Result is: " + result);
-
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          query_pairs = splitQuery(request.replace("github?", ""));
-          String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-          System.out.println(json);
-
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Check the todos mentioned in the Java source file");
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
-
-        } else {
-          // if the request is not recognized at all
-
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
-
-        // Output
-        response = builder.toString().getBytes();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
-    }
-
-    return response;
-  }
-
-  /**
-   * Method to read in a query and split it up correctly
-   * @param query parameters on path
-   * @return Map of all parameters and their specific values
-   * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
-   */
-  public static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
-    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-    // "q=hello+world%2Fme&bob=5"
-    String[] pairs = query.split("&");
-    // ["q=hello+world%2Fme", "bob=5"]
-    for (String pair : pairs) {
-      int idx = pair.indexOf("=");
-      query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
-          URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
-    }
-    // {{"q", "hello world/me"}, {"bob","5"}}
-    return query_pairs;
-  }
-
-  /**
-   * Builds an HTML file list from the www directory
-   * @return HTML string output of file list
-   */
-  public static String buildFileList() {
-    ArrayList<String> filenames = new ArrayList<>();
-
-    // Creating a File object for directory
-    File directoryPath = new File("www/");
-    filenames.addAll(Arrays.asList(directoryPath.list()));
-
-    if (filenames.size() > 0) {
-      StringBuilder builder = new StringBuilder();
-      builder.append("<ul>\n");
-      for (var filename : filenames) {
-        builder.append("<li>" + filename + "</li>");
-      }
-      builder.append("</ul>\n");
-      return builder.toString();
-    } else {
-      return "No files in directory";
-    }
-  }
-
-  /**
-   * Read bytes from a file and return them in the byte array. We read in blocks
-   * of 512 bytes for efficiency.
-   */
-  public static byte[] readFileInBytes(File f) throws IOException {
-
-    FileInputStream file = new FileInputStream(f);
-    ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-    byte buffer[] = new byte[512];
-    int numRead = file.read(buffer);
-    while (numRead > 0) {
-      data.write(buffer, 0, numRead);
-      numRead = file.read(buffer);
-    }
-    file.close();
-
-    byte[] result = data.toByteArray();
-    data.close();
-
-    return result;
-  }
-
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   * 
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
-  }
-}
+/*
+Simple Web Server in Java which allows you to call 
+localhost:9000/ and show you the root.html webpage from the www/root.html folder
+You can also do some other simple GET requests:
+1) /random shows you a random picture (well random from the set defined)
+2) json shows you the response as JSON for /random instead the html page
+3) /file/filename sends you the raw file (not as HTML), streamed from disk to the socket,
+   or only the parts of it asked for with a Range header
+4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result,
+   a POST to /multiply multiplies every pair of numbers in the body
+5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
+   JSON which will for now only be printed in the console. See the todo below
+6) /stream sends a random image event (as in /json) every second as Server-Sent Events
+7) PUT or POST /upload/filename stores the request body as uploads/filename, it is
+   written to disk while it arrives and answered with its size and SHA-256
+
+Every connection is handled on its own worker, how is decided at startup with
+-Phttp.mode=virtual|thread|pool (see ServerConfig). The time from accepting a
+connection to writing the first response byte is printed every few seconds.
+
+The reading of the request is done "manually", meaning no library that helps making things a 
+little easier is used. This is done so you see exactly how to pars the request and 
+write a response back
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class WebServer {
+  public static void main(String args[]) {
+    int port = 9000; // default port
+    if (args.length > 0) {
+      try {
+        port = Integer.parseInt(args[0]);
+      } catch (NumberFormatException nfe) {
+        System.out.println("[Port] must be integer");
+        System.exit(2);
+      }
+    }
+    WebServer server = new WebServer(port, ServerConfig.fromSystemProperties());
+  }
+
+  /**
+   * Request counts, bytes and latencies, served on /metrics. The time from
+   * accepting a connection until the first response byte is also reported
+   * periodically so we can see how the server copes with many concurrent clients.
+   */
+  final Metrics metrics = new Metrics();
+
+  private final ServerConfig config;
+
+  /**
+   * Read buffers, reused by the next connection once a connection is closed
+   */
+  final BufferPool buffers;
+
+  /**
+   * Encoded responses of the pages built from www/, see ResponseCache
+   */
+  private final ResponseCache cache;
+
+  /**
+   * Files in www/ for the list on the root page, see DirectoryIndex
+   */
+  private final DirectoryIndex fileIndex;
+
+  /**
+   * GitHub (or whatever -Phttp.upstreamUrl points to) for /github, see UpstreamClient
+   */
+  private final UpstreamClient upstream;
+
+  /**
+   * gzip/deflate for text responses, see Compression
+   */
+  private final Compression compression;
+
+  /**
+   * Random image events for /stream, see EventStream
+   */
+  private final EventStream events;
+
+  /**
+   * Connections accepted and not closed yet, at most config.maxConnections
+   */
+  private final AtomicInteger connections = new AtomicInteger();
+
+  /**
+   * Closes connections whose request took too long, only in the blocking modes
+   */
+  private Watchdog watchdog;
+
+  /**
+   * Endpoints by method and path, see createRouter. Package-private so
+   * JsonBenchmark can add the old /json next to the current one.
+   */
+  final Router router = createRouter();
+
+  private static final Path ROOT_TEMPLATE = Paths.get("www/root.html");
+  private static final Path RANDOM_PAGE = Paths.get("www/index.html");
+  private static final Path WWW = Paths.get("www");
+
+  /**
+   * Main thread, only accepts connections and hands them to a worker so a slow
+   * client (or a slow /github request) does not hold up everybody else
+   * @param port to listen on
+   * @param config how connections are handled, see {@link ServerConfig}
+   */
+  public WebServer(int port, ServerConfig config) {
+    this(config);
+    if (config.mode.equals("nio")) {
+      // event loops instead of worker threads, see NioServer
+      startReporter(config, null);
+      try {
+        new NioServer(this, config).run(port);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+    ServerSocketChannel[] listeners = new ServerSocketChannel[0];
+    ExecutorService workers = createWorkers(config);
+    startReporter(config, workers);
+    watchdog = new Watchdog(Math.min(1000, config.requestTimeoutMillis), metrics);
+
+    try {
+      // ServerSocketChannels (in blocking mode) instead of ServerSockets, so
+      // the sockets have a channel that files can be transferred to directly
+      listeners = listen(port, config);
+      System.out.println("Listening on port " + port + " with " + listeners.length + " acceptors (" + config + ")");
+      for (int i = 1; i < listeners.length; i++) {
+        ServerSocketChannel listener = listeners[i];
+        new Thread(() -> acceptConnections(listener, workers), "acceptor-" + i).start();
+      }
+      acceptConnections(listeners[0], workers);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      workers.shutdown();
+      for (ServerSocketChannel listener : listeners) {
+        try {
+          listener.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Everything that answers requests, without listening for connections.
+   * JsonBenchmark uses it to call createResponse directly.
+   * @param config how requests are answered, see {@link ServerConfig}
+   */
+  WebServer(ServerConfig config) {
+    this.config = config;
+    this.buffers = new BufferPool(config.maxHeaderBytes, config.pooledBuffers);
+    this.cache = new ResponseCache(config.cacheBytes, config.cacheCheckMillis);
+    this.fileIndex = new DirectoryIndex(WWW);
+    this.compression = new Compression(config.compressMinBytes, config.compressLevel);
+    this.events = new EventStream(config.streamQueueEvents);
+    startPublisher(config);
+    this.upstream = new UpstreamClient(config.upstreamUrl, config.upstreamTtlMillis,
+        config.upstreamTimeoutMillis, config.upstreamEntries);
+  }
+
+  /**
+   * Opens the listening sockets. With more than one acceptor they all bind
+   * the same port with SO_REUSEPORT and the kernel spreads new connections
+   * over them, so accepting is not limited to what one thread can do.
+   * @param port to listen on
+   * @param config server configuration
+   * @return config.acceptors listening sockets, or one if the operating system
+   *         does not support SO_REUSEPORT
+   * @throws IOException if a socket cannot be opened or bound
+   */
+  static ServerSocketChannel[] listen(int port, ServerConfig config) throws IOException {
+    int count = Math.max(1, config.acceptors);
+    if (count > 1) {
+      try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+        if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+          System.out.println("SO_REUSEPORT is not supported here, using one acceptor");
+          count = 1;
+        }
+      }
+    }
+    ServerSocketChannel[] listeners = new ServerSocketChannel[count];
+    for (int i = 0; i < count; i++) {
+      listeners[i] = ServerSocketChannel.open();
+      if (count > 1) {
+        listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      listeners[i].bind(new InetSocketAddress(port), config.backlog);
+    }
+    return listeners;
+  }
+
+  /**
+   * Accepts connections from one listening socket forever and hands them to
+   * the workers
+   * @param listener the listening socket
+   * @param workers executor the connections run on
+   */
+  private void acceptConnections(ServerSocketChannel listener, ExecutorService workers) {
+    try {
+      while (true) {
+        Socket sock = listener.accept().socket();
+        long acceptedAt = System.nanoTime();
+        if (!admit()) {
+          rejectConnection(sock);
+          continue;
+        }
+        try {
+          workers.execute(() -> handleConnection(sock, acceptedAt));
+        } catch (RejectedExecutionException e) {
+          // pool and queue are full, answer right away instead of letting it wait
+          release();
+          rejectConnection(sock);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Serves requests on one connection until the client closes it, it was
+   * idle for too long or it reached the request limit. Requests the client
+   * pipelined (sent before reading our responses) are answered in order and
+   * their responses are flushed together. Runs on a worker thread.
+   * @param sock the accepted client socket
+   * @param acceptedAt System.nanoTime() when the socket was accepted
+   */
+  private void handleConnection(Socket sock, long acceptedAt) {
+    metrics.connectionOpened();
+    try (sock) {
+      // a read that waits longer than this ends the connection
+      sock.setSoTimeout(config.idleTimeoutMillis);
+
+      // Read from socket's input stream straight into a pooled buffer that
+      // lives as long as the connection, since it may already hold the next request
+      InputStream in = sock.getInputStream();
+      OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+      ByteBuffer buf = buffers.acquire();
+      buf.flip(); // empty, in read mode
+      HttpParser parser = new HttpParser(config.maxHeaderBytes, config.maxHeaders);
+      Request request = new Request(config.maxHeaders);
+
+      try {
+        int served = 0;
+        boolean flushed = false;
+        boolean keepAlive = true;
+        while (keepAlive) {
+          try {
+            if (!readRequest(sock, in, buf, parser, request)) {
+              break; // client closed the connection
+            }
+          } catch (SocketTimeoutException e) {
+            break; // idle connection, just close it
+          } catch (HttpParser.BadRequestException e) {
+            byte[] bytes = Response.html(e.status, e.reason, "<html>" + e.getMessage() + "</html>").encode(false);
+            out.write(bytes);
+            metrics.rejected(e.status);
+            metrics.sent(bytes.length);
+            break;
+          }
+          metrics.parse.record(parser.lastParseNanos());
+          AsyncLog.info("Received: " + request.requestLine());
+
+          served++;
+          keepAlive = request.keepAlive() && served < config.maxRequestsPerConnection;
+          boolean expectsContinue = request.isHttp11() && request.headerEquals("Expect", "100-continue");
+          Router.Params params = new Router.Params(request);
+          CompletableFuture<Response> future = createResponse(request, params);
+          RequestBody body = params.body();
+          if (body != null) {
+            // the route takes the body, its response is ready once it is read
+            if (expectsContinue && !buf.hasRemaining()) {
+              out.write(Response.CONTINUE);
+              out.flush();
+            }
+            try {
+              readBody(sock, in, buf, body);
+            } catch (HttpParser.BadRequestException e) {
+              body.abort(e); // answered with e.status, the rest of the body is not read
+              keepAlive = false;
+            } catch (IOException e) {
+              body.abort(e);
+              throw e;
+            }
+          } else if (request.hasBody()) {
+            // other request bodies are not read, so do not mistake one for the next request
+            keepAlive = false;
+          }
+          // from here on a client that does not read the response cannot keep the worker:
+          // the response has to be ready within the request timeout, and then every
+          // part of it has to be taken within the request timeout of the one before
+          watchdog.arm(sock, deadline());
+          // a worker thread may wait here, only the nio mode must not block
+          Response response = future.join();
+          watchdog.arm(sock, deadline());
+          keepAlive = keepAlive && !response.closesConnection();
+          long writeStart = System.nanoTime();
+          try {
+            byte[] head = response.encode(keepAlive);
+            out.write(head);
+            long sent = head.length;
+            if (response.isStreamed()) {
+              // head has to be on the wire before the body is sent past the stream
+              out.flush();
+              while (!response.bodyDone()) {
+                if (response.bodyStalled()) {
+                  // a live body waits for its source, not for the client
+                  watchdog.disarm(sock);
+                  response.awaitBody();
+                  watchdog.arm(sock, deadline());
+                }
+                long written = response.transferBodyTo(sock.getChannel());
+                if (written > 0) {
+                  // a slow download is fine as long as it keeps moving
+                  watchdog.arm(sock, deadline());
+                }
+                sent += written;
+              }
+            }
+            metrics.sent(sent);
+          } finally {
+            response.close();
+          }
+          metrics.write.record(System.nanoTime() - writeStart);
+          watchdog.disarm(sock);
+
+          // only flush once all pipelined requests that already arrived are answered
+          if (!buf.hasRemaining() && in.available() == 0) {
+            out.flush();
+            if (!flushed) {
+              metrics.firstByte.record(System.nanoTime() - acceptedAt);
+              flushed = true;
+            }
+          }
+        }
+        out.flush();
+      } finally {
+        buffers.release(buf);
+      }
+    } catch (IOException e) {
+      if (!sock.isClosed()) {
+        e.printStackTrace(); // otherwise the watchdog closed it
+      }
+    } finally {
+      watchdog.disarm(sock);
+      metrics.connectionClosed();
+      release();
+    }
+  }
+
+  /**
+   * @return System.nanoTime() by which the next step of answering a request has to be done
+   */
+  private long deadline() {
+    return System.nanoTime() + config.requestTimeoutMillis * 1_000_000L;
+  }
+
+  /**
+   * Reads from the socket until the buffer holds a complete request head.
+   * Waiting for a new request ends after the idle timeout, but once the
+   * first byte of a head arrived the whole head has to arrive within the
+   * header timeout, so a client sending a byte every few seconds cannot hold
+   * the connection forever.
+   * @param sock the client socket, its read timeout is changed
+   * @param in socket input stream
+   * @param buf the connection's read buffer, in read mode
+   * @param parser the connection's parser
+   * @param request filled with the parsed request
+   * @return false if the client closed the connection
+   * @throws SocketTimeoutException if no request came within the idle timeout
+   * @throws IOException if reading fails, the request is malformed or its head
+   *         did not arrive in time (408)
+   */
+  private boolean readRequest(Socket sock, InputStream in, ByteBuffer buf, HttpParser parser, Request request)
+      throws IOException {
+    long headStart = System.nanoTime(); // only used once part of the head is in the buffer
+    boolean headStarted = false;
+    while (!parser.parse(buf, request)) {
+      if (buf.hasRemaining() && !headStarted) {
+        headStarted = true;
+        headStart = System.nanoTime();
+      }
+      int timeout = config.idleTimeoutMillis;
+      if (headStarted) {
+        long left = config.headerTimeoutMillis - (System.nanoTime() - headStart) / 1_000_000;
+        if (left <= 0) {
+          metrics.timedOut("header");
+          throw new HttpParser.BadRequestException(408, "Request Timeout", "The request head took too long");
+        }
+        timeout = (int) Math.min(timeout, left);
+      }
+      sock.setSoTimeout(timeout);
+
+      if (buf.limit() == buf.capacity()) {
+        // move the unparsed bytes to the front to make room
+        buf.compact().flip();
+      }
+      int read;
+      try {
+        read = in.read(buf.array(), buf.limit(), buf.capacity() - buf.limit());
+      } catch (SocketTimeoutException e) {
+        if (headStarted) {
+          continue; // answered with a 408 above
+        }
+        throw e;
+      }
+      if (read < 0) {
+        return false;
+      }
+      metrics.received(read);
+      buf.limit(buf.limit() + read);
+    }
+    return true;
+  }
+
+  /**
+   * Streams a request body to its sink: what already is in the buffer after
+   * the head, then the rest from the socket through the same buffer, so the
+   * body never needs more memory than the buffer. A client that stops
+   * sending for the idle timeout loses the connection.
+   * @param sock the client socket, its read timeout is changed
+   * @param in socket input stream
+   * @param buf the connection's read buffer, in read mode, positioned after
+   *            the head. Afterwards positioned after the body.
+   * @param body the body the route takes
+   * @throws IOException if reading or storing fails or the body is invalid
+   */
+  private void readBody(Socket sock, InputStream in, ByteBuffer buf, RequestBody body) throws IOException {
+    sock.setSoTimeout(config.idleTimeoutMillis);
+    while (!body.readFrom(buf)) {
+      if (!buf.hasRemaining()) {
+        buf.position(0).limit(0); // all taken, read into the whole buffer
+      } else if (buf.limit() == buf.capacity()) {
+        buf.compact().flip(); // part of a chunk size line, move it to the front
+      }
+      int read = in.read(buf.array(), buf.limit(), buf.capacity() - buf.limit());
+      if (read < 0) {
+        throw new EOFException("Client closed the connection during the request body");
+      }
+      metrics.received(read);
+      buf.limit(buf.limit() + read);
+    }
+    body.finish();
+  }
+
+  /**
+   * Counts a newly accepted connection if there is room for it
+   * @return false if config.maxConnections are open already, then the
+   *         connection has to be rejected
+   */
+  boolean admit() {
+    if (connections.incrementAndGet() > config.maxConnections) {
+      connections.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Makes room for the next connection, once for every admitted one when it is closed
+   */
+  void release() {
+    connections.decrementAndGet();
+  }
+
+  /**
+   * Sends a 503 to a connection we have no room for and closes it, it is
+   * short enough for the socket buffer so the accepting thread does not wait
+   * @param sock the accepted client socket
+   */
+  void rejectConnection(Socket sock) {
+    try (sock) {
+      OutputStream out = sock.getOutputStream();
+      out.write(Response.html(503, "Service Unavailable", "Server is busy, please try again")
+          .header("Retry-After", Integer.toString(config.retryAfterSeconds)).encode(false));
+      out.flush();
+      metrics.rejected(503);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Creates the executor the connections run on, depending on the configured mode
+   * @param config server configuration
+   * @return executor to submit connections to
+   */
+  private static ExecutorService createWorkers(ServerConfig config) {
+    switch (config.mode) {
+      case "pool":
+        // fixed number of threads, the bounded queue makes execute() throw
+        // once it is full instead of piling up connections without limit
+        return new ThreadPoolExecutor(config.poolSize, config.poolSize,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.queueDepth),
+            new ThreadPoolExecutor.AbortPolicy());
+      case "virtual":
+        try {
+          // only available from Java 21 on, so look it up at runtime
+          Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+          return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+          System.out.println("No virtual threads in this JVM, using a thread per connection");
+        }
+        return Executors.newCachedThreadPool();
+      case "thread":
+        return Executors.newCachedThreadPool();
+      default:
+        throw new IllegalArgumentException("Unknown http.mode: " + config.mode);
+    }
+  }
+
+  /**
+   * Prints the accept-to-first-byte latency and the cache statistics every
+   * few seconds while requests come in
+   * @param config server configuration
+   * @param workers the connection executor, its queue length is printed in pool mode,
+   *                null when running on event loops
+   */
+  private void startReporter(ServerConfig config, ExecutorService workers) {
+    if (config.reportSeconds <= 0) {
+      return;
+    }
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "latency-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long[] lastCount = { 0 };
+    reporter.scheduleAtFixedRate(() -> {
+      long count = metrics.firstByte.count();
+      if (count == lastCount[0]) {
+        return; // nothing new to report
+      }
+      lastCount[0] = count;
+      String line = metrics.firstByte.summary("first-byte");
+      if (workers instanceof ThreadPoolExecutor) {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+        line += " active=" + pool.getActiveCount() + " queued=" + pool.getQueue().size();
+      }
+      AsyncLog.info(line);
+      AsyncLog.info(cache.toString());
+      AsyncLog.info(upstream.toString());
+      AsyncLog.info(compression.toString());
+      AsyncLog.info(events.toString());
+    }, config.reportSeconds, config.reportSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Used in the "/random" endpoint
+   */
+  private final static HashMap<String, String> _images = new HashMap<>() {
+    {
+      put("streets", "https://iili.io/JV1pSV.jpg");
+      put("bread", "https://iili.io/Jj9MWG.jpg");
+    }
+  };
+
+  /**
+   * The JSON of every image in _images, for /json and /stream
+   */
+  private static final String[] IMAGE_JSON = imageJson();
+
+  /**
+   * The whole /json response of every image, status line, headers and body
+   * encoded once here (see Response.freeze), so answering /json only picks one
+   */
+  private static final Response[] IMAGE_RESPONSES = imageResponses();
+
+  private static String[] imageJson() {
+    String[] json = new String[_images.size()];
+    int i = 0;
+    for (Map.Entry<String, String> image : _images.entrySet()) {
+      json[i++] = "{\"header\":\"" + image.getKey() + "\",\"image\":\"" + image.getValue() + "\"}";
+    }
+    return json;
+  }
+
+  private static Response[] imageResponses() {
+    Response[] responses = new Response[IMAGE_JSON.length];
+    for (int i = 0; i < responses.length; i++) {
+      responses[i] = Response.json(IMAGE_JSON[i]).freeze();
+    }
+    return responses;
+  }
+
+  /**
+   * Publishes a random image event for /stream every config.streamIntervalMillis,
+   * as long as somebody is subscribed
+   */
+  private void startPublisher(ServerConfig config) {
+    if (config.streamIntervalMillis <= 0) {
+      return;
+    }
+    ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "event-publisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    publisher.scheduleAtFixedRate(() -> {
+      if (events.subscribers() > 0) {
+        events.publish("image", randomImage());
+      }
+    }, config.streamIntervalMillis, config.streamIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Generates the response for one request
+   * @param request the parsed request line and headers
+   * @return completes with the response, framing headers are added when it is
+   *         written. Already completed unless the route waits for an upstream
+   *         server, it never completes exceptionally.
+   */
+  public CompletableFuture<Response> createResponse(Request request) {
+    return createResponse(request, new Router.Params(request));
+  }
+
+  /**
+   * Generates the response for one request
+   * @param request the parsed request line and headers
+   * @param params filled by the router, params.body() is the body the
+   *               connection has to read for the response to complete
+   * @return see createResponse(Request)
+   */
+  CompletableFuture<Response> createResponse(Request request, Router.Params params) {
+    // read now, the request is reused before an async route is done
+    Compression.Encoding encoding = Compression.negotiate(request);
+    boolean http11 = request.isHttp11();
+    boolean get = request.isMethod("GET");
+    String ifNoneMatch = request.header("If-None-Match");
+    String ifModifiedSince = request.header("If-Modified-Since");
+    long start = System.nanoTime();
+    CompletableFuture<Response> response;
+    try {
+      response = router.route(request, params).thenApply(routed -> {
+        if (!http11 && routed.isStreamed()) {
+          routed.closeDelimited(); // HTTP/1.0 does not know chunked encoding
+        }
+        Response compressed = compress(routed, encoding);
+        if (get && (compressed.status == 200 || compressed.status == 206)
+            && compressed.isNotModified(ifNoneMatch, ifModifiedSince)) {
+          // the client has this version already, only send the validators
+          compressed.close();
+          return Response.notModified(compressed);
+        }
+        compression.sent(compressed);
+        return compressed;
+      }).exceptionally(e -> {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof HttpParser.BadRequestException) {
+          // e.g. a request body that was too large
+          HttpParser.BadRequestException bad = (HttpParser.BadRequestException) cause;
+          return Response.html(bad.status, bad.reason, "<html>" + bad.getMessage() + "</html>");
+        }
+        if (!(cause instanceof IOException)) {
+          e.printStackTrace(); // a body that could not be read or stored was logged by its sink
+        }
+        return Response.html(500, "Internal Server Error", "<html>ERROR: " + e.getMessage() + "</html>");
+      });
+    } catch (IOException e) {
+      e.printStackTrace();
+      response = CompletableFuture.completedFuture(
+          Response.html(500, "Internal Server Error", "<html>ERROR: " + e.getMessage() + "</html>"));
+    }
+    return response.thenApply(done -> {
+      String route = params.route() == null ? Metrics.NO_ROUTE : params.route();
+      metrics.handled(route, done.status, System.nanoTime() - start);
+      return done;
+    });
+  }
+
+  /**
+   * Compresses a response that was built for this request, cached pages
+   * were compressed when they were cached (see cachedPage)
+   * @param response the response of the route
+   * @param encoding what the client accepts
+   * @return the response to send
+   */
+  private Response compress(Response response, Compression.Encoding encoding) {
+    if (!response.isFrozen()) {
+      try {
+        response = compression.compress(response, encoding);
+      } catch (IOException e) {
+        e.printStackTrace(); // send it uncompressed then
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Gets a page from the cache, compressed with the encoding the client
+   * accepts, so every encoding is only compressed once per change. The page
+   * gets an ETag and a Last-Modified date, so a client that has it already
+   * is answered with a 304 (see createResponse).
+   * @see ResponseCache#get
+   */
+  private Response cachedPage(Request request, String key, long version, ResponseCache.Loader loader,
+      Path... files) throws IOException {
+    Compression.Encoding encoding = Compression.negotiate(request);
+    return cache.get(key + " " + encoding.token, version, () -> {
+      Response response = compression.compress(loader.load(), encoding);
+      return response.header("ETag", Response.etagOf(response.body))
+          .header("Last-Modified", Response.HTTP_DATE.format(lastModified(files)));
+    }, files);
+  }
+
+  /**
+   * @param files the files (or directories) a page is built from
+   * @return when the newest of them was modified
+   */
+  private static Instant lastModified(Path... files) throws IOException {
+    Instant newest = Instant.EPOCH;
+    for (Path file : files) {
+      Instant modified = Files.getLastModifiedTime(file).toInstant();
+      if (modified.isAfter(newest)) {
+        newest = modified;
+      }
+    }
+    return newest;
+  }
+
+  /**
+   * Registers all endpoints, see the comment at the top of the file
+   * @return the router createResponse dispatches to
+   */
+  private Router createRouter() {
+    Router router = new Router();
+    router.get("", this::rootPage);
+    router.get("json", this::randomImageJson);
+    router.get("random", this::randomImagePage);
+    router.get("file/*", this::file);
+    router.get("multiply", this::multiply);
+    router.body("POST", "multiply", this::multiplyBatch);
+    router.getAsync("github", this::github);
+    router.get("metrics", this::metrics);
+    router.get("stream", this::stream);
+    router.body("PUT", "upload/{name}", this::upload);
+    router.body("POST", "upload/{name}", this::upload);
+    return router;
+  }
+
+  /**
+   * shows the default directory page, it is only built again when root.html
+   * or the list of files in www changed
+   */
+  private Response rootPage(Request request, Router.Params params) throws IOException {
+    return cachedPage(request, "/", fileIndex.version(), () -> {
+      // opens the root.html file
+      String page = new String(readFileInBytes(ROOT_TEMPLATE.toFile()), StandardCharsets.UTF_8);
+      // performs a template replacement in the page with the file list
+      page = page.replace("${links}", fileIndex.fragment());
+
+      // Generate response
+      return Response.html(200, "OK", page);
+    }, ROOT_TEMPLATE, WWW); // www is modified when a file is added or removed, that dates the list
+  }
+
+  /**
+   * shows the JSON of a random image and sets the header name for that image
+   */
+  private Response randomImageJson(Request request, Router.Params params) {
+    return randomImageResponse();
+  }
+
+  /**
+   * @return the pre-encoded /json response of a random image, picking it
+   *         allocates nothing
+   */
+  static Response randomImageResponse() {
+    return IMAGE_RESPONSES[ThreadLocalRandom.current().nextInt(IMAGE_RESPONSES.length)];
+  }
+
+  /**
+   * sends a random image event (the JSON of /json) to the client whenever
+   * one is published, for as long as it stays connected
+   */
+  private Response stream(Request request, Router.Params params) {
+    return Response.live("text/event-stream; charset=utf-8", events.subscribe());
+  }
+
+  /**
+   * @return the JSON of a random image from _images
+   */
+  private static String randomImage() {
+    return IMAGE_JSON[ThreadLocalRandom.current().nextInt(IMAGE_JSON.length)];
+  }
+
+  /**
+   * opens the random image page, sends the index.html as it is, from memory
+   * as long as it does not change
+   */
+  private Response randomImagePage(Request request, Router.Params params) throws IOException {
+    return cachedPage(request, "random", 0, () -> new Response(200, "OK", "text/html; charset=utf-8",
+        readFileInBytes(RANDOM_PAGE.toFile())), RANDOM_PAGE);
+  }
+
+  /**
+   * tries to find the file after /file/ and sends it or shows an error
+   */
+  private Response file(Request request, Router.Params params) throws IOException {
+    // take the path and clean it, only files below the directory the
+    // server was started in can be requested
+    Path root = Paths.get("").toAbsolutePath();
+    Path file = root.resolve(params.rest()).normalize();
+
+    // Generate response
+    if (!file.startsWith(root)) {
+      return Response.html(403, "Forbidden", "Not allowed to read: " + request.path());
+    } else if (Files.isRegularFile(file) && Files.isReadable(file)) { // success
+      String type = Response.contentTypeOf(file);
+      String range = request.header("Range");
+      if (range == null && Compression.isCompressible(type) && Files.size(file) <= config.compressMaxFileBytes) {
+        // small text files are compressed once and sent from memory
+        return cachedPage(request, "file/" + root.relativize(file), 0,
+            () -> new Response(200, "OK", type, Files.readAllBytes(file)), file);
+      }
+      // a range is cut from the file as it is, uncompressed
+      return Response.file(file, range, request.header("If-Range"));
+    } else { // failure
+      return Response.html(404, "Not Found", "File not found: " + root.relativize(file));
+    }
+  }
+
+  /**
+   * multiplies num1 and num2 from the query, a missing parameter or one that
+   * is not a number is answered with a 400 by the router
+   */
+  private Response multiply(Request request, Router.Params params) throws IOException {
+    // extract required fields from parameters
+    long num1 = params.longParam("num1");
+    long num2 = params.longParam("num2");
+
+    // do math, a product that does not fit a long is still exact
+    String result = MultiplyBatch.multiply(num1, num2);
+
+    // Generate response
+    return Response.html(200, "OK", "Result is: " + result);
+  }
+
+  /**
+   * multiplies every pair of numbers in the request body (see MultiplyBatch)
+   * while it arrives and answers with the products, in the same order
+   */
+  private BodySink multiplyBatch(Request request, Router.Params params) throws IOException {
+    return MultiplyBatch.open(request.header("Content-Type"), request.contentLength(), config.maxUploadBytes);
+  }
+
+  /**
+   * stores the request body as uploads/NAME (see Upload), it is streamed to
+   * disk while it arrives so it can be much larger than the memory
+   */
+  private BodySink upload(Request request, Router.Params params) throws IOException {
+    return Upload.open(Paths.get(config.uploadDir), params.path("name"), request.contentLength(),
+        config.maxUploadBytes);
+  }
+
+  /**
+   * shows the request counts and latencies of this server, in the Prometheus
+   * text format or with ?format=json (or Accept: application/json) as JSON
+   */
+  private Response metrics(Request request, Router.Params params) throws IOException {
+    String format = params.query("format");
+    String accept = request.header("Accept");
+    if ("json".equals(format) || (format == null && accept != null && accept.contains("application/json"))) {
+      return Response.json(metrics.json());
+    }
+    return new Response(200, "OK", "text/plain; version=0.0.4; charset=utf-8",
+        metrics.text().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * pulls the query from the request and runs it with GitHub's REST API
+   * (or -Phttp.upstreamUrl), without blocking while GitHub answers, see UpstreamClient
+   * check out https://docs.github.com/rest/reference/
+   *
+   * HINT: REST is organized by nesting topics. Figure out the biggest one first,
+   *     then drill down to what you care about
+   * "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+   *     "/repos/OWNERNAME/REPONAME/contributors"
+   */
+  private CompletableFuture<Response> github(Request request, Router.Params params) throws IOException {
+    String query = params.require("query");
+    CompletableFuture<UpstreamClient.Result> fetched;
+    try {
+      fetched = upstream.get(query);
+    } catch (IllegalArgumentException e) {
+      throw new HttpParser.BadRequestException(400, "Bad Request", "Not a valid query: " + query);
+    }
+    return fetched.handle((result, error) -> {
+      if (error != null) {
+        AsyncLog.warn("Exception in url request:" + error.getMessage());
+        return Response.html(502, "Bad Gateway", "GitHub could not be reached");
+      }
+      String json = new String(result.body, StandardCharsets.UTF_8);
+      AsyncLog.info(json);
+
+      return Response.html(200, "OK", "Check the todos mentioned in the Java source file");
+      // TODO: Parse the JSON returned by your fetch and create an appropriate
+      // response based on what the assignment document asks for
+    });
+  }
+
+  /**
+   * Method to read in a query and split it up correctly
+   * @param query parameters on path
+   * @return Map of all parameters and their specific values
+   * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
+   */
+  public static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
+    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+    // "q=hello+world%2Fme&bob=5"
+    String[] pairs = query.split("&");
+    // ["q=hello+world%2Fme", "bob=5"]
+    for (String pair : pairs) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      // "flag" without a value is kept with an empty value
+      int idx = pair.indexOf("=");
+      String name = idx < 0 ? pair : pair.substring(0, idx);
+      String value = idx < 0 ? "" : pair.substring(idx + 1);
+      query_pairs.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+    // {{"q", "hello world/me"}, {"bob","5"}}
+    return query_pairs;
+  }
+
+  /**
+   * Read bytes from a file and return them in the byte array. The array is
+   * sized from the file length up front, so the bytes are copied only once.
+   * Only for small files like the page templates, files that are sent as they
+   * are go through Response.file and never end up on the heap.
+   */
+  public static byte[] readFileInBytes(File f) throws IOException {
+    return Files.readAllBytes(f.toPath());
+  }
+}